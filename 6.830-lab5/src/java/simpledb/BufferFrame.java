@@ -0,0 +1,176 @@
+package simpledb;
+
+/**
+ * BufferFrame is the descriptor of one frame of the {@link BufferPool}: the
+ * page held in the frame, the id it is filed under in the {@link PageTable}
+ * and the number of callers currently using the page.
+ * <p>
+ * A page is pinned by every {@link BufferPool#getPage} call and stays
+ * pinned until {@link BufferPool#unpinPage} or the end of the transaction.
+ * Only unpinned frames are evicted. Once a frame has been evicted it can not
+ * be pinned any more, so a caller that looked the page up just before the
+ * eviction notices and looks again.
+ * <p>
+ * Dirty state is read from the page itself, because operators mark pages
+ * dirty directly through {@link Page#markDirty}. Reference history is
+ * kept by the {@link ReplacementPolicy}.
+ * <p>
+ * A dirty page whose update is already in the log may be written back by
+ * the {@link PageCleaner}. The frame remembers which transaction logged the
+ * page; once another transaction fetches the page for writing, or dirties
+ * it, the page is no longer cleanable. The check and the write both happen
+ * under the frame's monitor, so a writer never changes the page while it
+ * is being written.
+ * <p>
+ * The frame also keeps the page data as of its last log record, so that
+ * the next record only needs the slots that changed since, and the
+ * recLSN of the page: the LSN from which on log records of the page may
+ * be missing on disk. Fuzzy checkpoints record the recLSNs of all frames
+ * as the dirty page table.
+ *
+ * @Threadsafe
+ */
+public class BufferFrame {
+
+	private final PageId pid;
+	private final long key;
+	private volatile Page page;
+	private int pinCount;
+	private boolean evicted;
+	private TransactionId logged;
+	private volatile byte[] loggedData;
+	private long recLsn = NO_LSN;
+
+	/** recLSN of a page whose logged updates are all on disk */
+	public static final long NO_LSN = -1;
+
+	/**
+	 * @param page the page to put into the frame
+	 */
+	public BufferFrame(Page page) {
+		this.pid = page.getId();
+		this.key = PageTable.key(pid);
+		this.page = page;
+		this.pinCount = 0;
+	}
+
+	/** @return the id of the page in this frame */
+	public PageId getId() {
+		return pid;
+	}
+
+	/** @return the page table key of the page in this frame */
+	long key() {
+		return key;
+	}
+
+	/** @return the page in this frame */
+	public Page getPage() {
+		return page;
+	}
+
+	/**
+	 * Replaces the page object of this frame with a newer version of the
+	 * same page.
+	 */
+	public void setPage(Page page) {
+		this.page = page;
+	}
+
+	/** @return the transaction that dirtied the page, or null if it is clean */
+	public TransactionId isDirty() {
+		return page.isDirty();
+	}
+
+	/** @return number of callers using the page right now */
+	public synchronized int getPinCount() {
+		return pinCount;
+	}
+
+	/**
+	 * Pins the page unless the frame has been evicted.
+	 *
+	 * @return true if the page was pinned
+	 */
+	public synchronized boolean tryPin() {
+		if (evicted) {
+			return false;
+		}
+		pinCount++;
+		return true;
+	}
+
+	public synchronized void unpin() {
+		if (pinCount > 0) {
+			pinCount--;
+		}
+	}
+
+	/** @return true if the frame may be given to another page */
+	public synchronized boolean isEvictable() {
+		return !evicted && pinCount == 0 && page.isDirty() == null;
+	}
+
+	/**
+	 * Marks the frame evicted if it is evictable. No pin can be taken on
+	 * it afterwards.
+	 *
+	 * @return true if the frame was evicted
+	 */
+	public synchronized boolean tryEvict() {
+		if (!isEvictable()) {
+			return false;
+		}
+		evicted = true;
+		return true;
+	}
+
+	/**
+	 * Records that the current contents of the page, dirtied by tid, are
+	 * in the log.
+	 */
+	public synchronized void setLogged(TransactionId tid) {
+		logged = tid;
+	}
+
+	/** @return data of the page as of its last log record, or null */
+	public byte[] getLoggedData() {
+		return loggedData;
+	}
+
+	public void setLoggedData(byte[] data) {
+		loggedData = data;
+	}
+
+	/**
+	 * Notes that the page is about to be logged, at an LSN of lsn or
+	 * later. The first such LSN since the page was last written is its
+	 * recLSN.
+	 */
+	public synchronized void markRecLsn(long lsn) {
+		if (recLsn == NO_LSN) {
+			recLsn = lsn;
+		}
+	}
+
+	/** @return the recLSN of the page, or NO_LSN */
+	public synchronized long getRecLsn() {
+		return recLsn;
+	}
+
+	/** Notes that the page has been written with all its logged updates. */
+	public synchronized void clearRecLsn() {
+		recLsn = NO_LSN;
+	}
+
+	/** @return true if the page is dirty and its update is in the log */
+	public synchronized boolean isCleanable() {
+		TransactionId dirty = page.isDirty();
+		return !evicted && logged != null && dirty != null && logged.equals(dirty);
+	}
+
+	/** Marks the frame evicted whether or not it is pinned. */
+	public synchronized void discard() {
+		evicted = true;
+	}
+}
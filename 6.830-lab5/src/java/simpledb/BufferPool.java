@@ -1,10 +1,19 @@
 package simpledb;
 
 import java.io.*;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +23,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Every page returned by getPage is pinned and is not evicted until it is
+ * unpinned again with {@link #unpinPage}, or until its transaction
+ * completes. Locks are independent of pins: a transaction keeps its locks
+ * until it completes, whether or not the page stays resident.
  * 
  * @Threadsafe, all fields are final
  */
@@ -25,23 +39,83 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Names of the replacement policies, see {@link #createPolicy}. */
+    public static final String CLOCK_POLICY = "clock";
+    public static final String LRU2_POLICY = "lru2";
     
     private final int numPages;
-    private final ConcurrentHashMap<Integer,Page> pageStore;
+    private final PageTable pageTable;
+    private final ReplacementPolicy replacementPolicy;
     
     private final LockManager lockManager;
 
+    // frames pinned by each transaction, released when it completes
+    private final ConcurrentHashMap<TransactionId, List<BufferFrame>> pins =
+    		new ConcurrentHashMap<TransactionId, List<BufferFrame>>();
+
+    // statistics, used to compare replacement policies on a workload
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong writeBacks = new AtomicLong();
+
+    private volatile boolean scanRings = true;
+    private volatile PageCleaner cleaner;
+
+    // pages read ahead of scans and not yet taken by getPage
+    private final ConcurrentHashMap<PageId, ReadAhead.Prefetch> readAheads =
+    		new ConcurrentHashMap<PageId, ReadAhead.Prefetch>();
+    private volatile boolean readAhead = Boolean.parseBoolean(System.getProperty("simpledb.ReadAhead",
+    		String.valueOf(Runtime.getRuntime().availableProcessors() > 1)));
+    private ThreadPoolExecutor readAheadThreads;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy named by the simpledb.ReplacementPolicy system
+     * property (e.g. -Dsimpledb.ReplacementPolicy=clock). The default
+     * is LRU-2. If the simpledb.PageCleaner property is set, a page
+     * cleaner is started with that interval in milliseconds.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, createPolicy(System.getProperty("simpledb.ReplacementPolicy", LRU2_POLICY), numPages));
+        long interval = Long.getLong("simpledb.PageCleaner", 0);
+        if(interval > 0){
+        	startPageCleaner(interval, PageCleaner.DEFAULT_BATCH);
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy decides which page is evicted when the pool is full
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
     	this.numPages = numPages;
-    	pageStore = new ConcurrentHashMap<Integer,Page>();
+    	pageTable = new PageTable(numPages);
+    	replacementPolicy = policy;
     	lockManager = new LockManager();
     }
+
+    /**
+     * Creates the replacement policy with the given name.
+     *
+     * @param name one of CLOCK_POLICY or LRU2_POLICY
+     * @param numPages number of frames of the buffer pool
+     */
+    public static ReplacementPolicy createPolicy(String name, int numPages) {
+    	if (CLOCK_POLICY.equalsIgnoreCase(name)) {
+    		return new ClockPolicy(numPages);
+    	}
+    	if (LRU2_POLICY.equalsIgnoreCase(name)) {
+    		return new LruKPolicy(2, numPages);
+    	}
+    	throw new IllegalArgumentException("unknown replacement policy " + name);
+    }
     
     public static int getPageSize() {
       return PAGE_SIZE;
@@ -57,27 +131,383 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page is pinned for the caller, who should call
+     * {@link #unpinPage} once it is done with it. Pins left over are
+     * released when the transaction completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a sequential scan.
+     * <p>
+     * Works like {@link #getPage(TransactionId, PageId, Permissions)}, but
+     * a page that is not resident takes over the frame the scan read into
+     * ring.size() pages ago instead of a frame picked by the replacement
+     * policy. Pages already resident are returned as usual.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the ring of the scan, or null for a normal access
+     * @see #newScanRing
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
         throws TransactionAbortedException, DbException {
     	// must lock before usage
     	lockManager.lock(tid, pid, perm);
+    	ReadAhead.Prefetch prefetch = readAheads.isEmpty() ? null : readAheads.remove(pid);
     	
         // some code goes here
-    	if(!pageStore.containsKey(pid.hashCode())){
-    		DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		Page page = dbfile.readPage(pid);
-    		if(pageStore.size() >= numPages){
-    			evictPage();
+    	while(true){
+    		BufferFrame frame = pageTable.get(pid);
+    		if(frame == null){
+    			misses.incrementAndGet();
+    			Page page = prefetch == null ? null : prefetch.take();
+    			prefetch = null;
+    			if(page == null){
+    				DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    				page = dbfile.readPage(pid);
+    			}
+    			frame = new BufferFrame(page);
+    			frame.tryPin();
+    			if(ring == null || !reuseRingFrame(ring)){
+    				if(pageTable.size() >= numPages){
+    					evictPage();
+    				}
+    			}
+    			
+    			// another thread may have read the same page meanwhile
+    			BufferFrame resident = pageTable.putIfAbsent(frame);
+    			if(resident == null){
+    				replacementPolicy.pageAdded(pid);
+    				if(ring != null){
+    					ring.add(pid);
+    				}
+    				return pinned(tid, frame);
+    			}
+    			frame = resident;
+    		}else{
+    			hits.incrementAndGet();
+    			replacementPolicy.pageAccessed(pid);
+    			if(prefetch != null){
+    				prefetch.read.cancel(false);
+    				prefetch = null;
+    			}
+    		}
+    		
+    		// the frame may have been evicted since the lookup, then look again
+    		if(frame.tryPin()){
+    			if(perm == Permissions.READ_WRITE){
+    				// the page is about to change, keep the cleaner away
+    				frame.setLogged(null);
+    			}
+    			return pinned(tid, frame);
     		}
-    		pageStore.put(pid.hashCode(), page);
+    	}
+    }
+
+    private Page pinned(TransactionId tid, BufferFrame frame) {
+    	if(tid != null){
+    		List<BufferFrame> held = pins.computeIfAbsent(tid, t -> new ArrayList<BufferFrame>());
+    		synchronized(held){
+    			held.add(frame);
+    		}
+    	}
+    	return frame.getPage();
+    }
+
+    /**
+     * Releases one pin that tid took on page pid with getPage. The page
+     * stays locked, but may be evicted once nobody has it pinned.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+    	BufferFrame frame = null;
+    	List<BufferFrame> held = tid == null ? null : pins.get(tid);
+    	if(held != null){
+    		synchronized(held){
+    			// the latest pin is the one usually released first
+    			for(int i = held.size() - 1; i >= 0; i--){
+    				if(held.get(i).getId().equals(pid)){
+    					frame = held.remove(i);
+    					break;
+    				}
+    			}
+    		}
+    	}else{
+    		frame = pageTable.get(pid);
     	}
     	
-    	return pageStore.get(pid.hashCode());
+    	if(frame != null){
+    		frame.unpin();
+    	}
+    }
+
+    /** @return number of pins held on page pid, 0 if it is not resident */
+    public int getPinCount(PageId pid) {
+    	BufferFrame frame = pageTable.get(pid);
+    	return frame == null ? 0 : frame.getPinCount();
+    }
+
+    /**
+     * Returns a ring for a sequential scan over a table of tablePages pages,
+     * or null if the whole table fits in the buffer pool, in which case the
+     * scan goes through the replacement policy like any other access and
+     * a second scan finds every page cached.
+     *
+     * @param tablePages number of pages the scan is going to read
+     */
+    public ScanRing newScanRing(int tablePages) {
+    	int size = Math.min(ScanRing.MAX_RING_PAGES, numPages / 8);
+    	if(!scanRings || size < 1 || tablePages <= numPages){
+    		return null;
+    	}
+    	return new ScanRing(size);
+    }
+
+    /**
+     * Returns the read-ahead for a sequential scan by tid over a heap file
+     * of tablePages pages, or null if read-ahead is off or the buffer pool
+     * is too small for it. The window of the scan may grow to a quarter of
+     * the buffer pool, at most ReadAhead.MAX_PAGES pages.
+     *
+     * @param tid the ID of the scanning transaction
+     * @param tableId the table scanned
+     * @param tablePages number of pages the scan is going to read
+     */
+    public ReadAhead newReadAhead(TransactionId tid, int tableId, int tablePages) {
+    	int max = Math.min(ReadAhead.MAX_PAGES, numPages / 4);
+    	if(!readAhead || max < ReadAhead.MIN_PAGES || tablePages <= 2){
+    		return null;
+    	}
+    	return new ReadAhead(this, tid, tableId, tablePages, max);
+    }
+
+    /**
+     * Turn read-ahead for sequential scans on or off. Unless the
+     * simpledb.ReadAhead property says otherwise, it is on if there is
+     * more than one processor: on a single one, handing pages over from
+     * the I/O threads costs more than it saves unless the disk is slow.
+     * Pages are read by simpledb.ReadAheadThreads I/O threads (default 2).
+     */
+    public void setReadAheadEnabled(boolean enabled) {
+    	readAhead = enabled;
+    }
+
+    /**
+     * Starts reading page pid for the scan of owner, unless it is resident
+     * or already read ahead. No lock is taken: the page read is only a copy
+     * of the disk, handed out by getPage after it locked the page as usual.
+     * <p>
+     * The copy stays the same as the disk for as long as it is kept. A
+     * page only changes on disk once it is resident, or by a rollback
+     * under the buffer pool lock, which is held here. The first getPage of
+     * the page, by whichever transaction, takes the copy out, and a page
+     * leaving the buffer pool drops the copy read before it did.
+     *
+     * @return true if the page is being read
+     */
+    synchronized boolean readAhead(ReadAhead owner, PageId pid) {
+    	if(readAheads.containsKey(pid) || pageTable.get(pid) != null){
+    		return false;
+    	}
+    	DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	FutureTask<Page> read = new FutureTask<Page>(() -> dbfile.readPage(pid));
+    	if(readAheads.putIfAbsent(pid, new ReadAhead.Prefetch(owner, read)) != null){
+    		return false;
+    	}
+    	readAheadThreads().execute(read);
+    	return true;
+    }
+
+    /** Forgets page pid if it was read ahead for owner. */
+    void dropReadAhead(ReadAhead owner, PageId pid) {
+    	ReadAhead.Prefetch prefetch = readAheads.get(pid);
+    	if(prefetch != null && prefetch.owner == owner && readAheads.remove(pid, prefetch)){
+    		prefetch.read.cancel(false);
+    	}
+    }
+
+    private synchronized ThreadPoolExecutor readAheadThreads() {
+    	if(readAheadThreads == null){
+    		int threads = Integer.getInteger("simpledb.ReadAheadThreads", 2);
+    		AtomicInteger n = new AtomicInteger();
+    		readAheadThreads = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+    				new LinkedBlockingQueue<Runnable>(), r -> {
+    					Thread t = new Thread(r, "ReadAhead-" + n.getAndIncrement());
+    					t.setDaemon(true);
+    					return t;
+    				});
+    		// idle pools of discarded buffer pools go away by themselves
+    		readAheadThreads.allowCoreThreadTimeOut(true);
+    	}
+    	return readAheadThreads;
+    }
+
+    /**
+     * Turn ring buffers for large sequential scans on or off. They are on
+     * by default.
+     */
+    public void setScanRingsEnabled(boolean enabled) {
+    	scanRings = enabled;
+    }
+
+    /** @return number of getPage calls that found the page resident */
+    public long getHitCount() {
+    	return hits.get();
+    }
+
+    /** @return number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+    	return misses.get();
+    }
+
+    /** @return fraction of getPage calls served without reading from disk */
+    public double getHitRate() {
+    	long h = hits.get();
+    	long total = h + misses.get();
+    	return total == 0 ? 0.0 : (double)h / total;
+    }
+
+    /** @return number of pages evicted to make room for other pages */
+    public long getEvictionCount() {
+    	return evictions.get();
+    }
+
+    /** @return number of dirty pages written back ahead of eviction */
+    public long getWriteBackCount() {
+    	return writeBacks.get();
+    }
+
+    /** @return number of deadlocks detected by the lock manager */
+    public long getDeadlockCount() {
+    	return lockManager.getDeadlockCount();
+    }
+
+    /** @return number of transactions aborted to break a deadlock */
+    public long getDeadlockVictimCount() {
+    	return lockManager.getVictimCount();
+    }
+
+    /** Reset the hit, miss and eviction counters. */
+    public void resetStats() {
+    	hits.set(0);
+    	misses.set(0);
+    	evictions.set(0);
+    	writeBacks.set(0);
+    }
+
+    /**
+     * Starts a background {@link PageCleaner}. While it runs, commit no
+     * longer writes the transaction's pages: flushPages only logs them,
+     * the commit record forces the log, and the cleaner writes the pages
+     * back afterwards. Recovery redoes committed updates that did not
+     * reach the disk before a crash.
+     *
+     * @param intervalMillis pause between two rounds of the cleaner
+     * @param batch maximum number of pages written per round
+     */
+    public synchronized void startPageCleaner(long intervalMillis, int batch) {
+    	if(cleaner == null){
+    		cleaner = new PageCleaner(this, intervalMillis, batch);
+    		cleaner.start();
+    	}
+    }
+
+    /**
+     * Stops the page cleaner, if one is running. Pages it has not written
+     * yet stay dirty in the buffer pool, with their updates in the log.
+     */
+    public void stopPageCleaner() {
+    	PageCleaner c;
+    	synchronized(this){
+    		c = cleaner;
+    		cleaner = null;
+    	}
+    	// join outside the lock, the cleaner's round may wait for the log file
+    	if(c != null){
+    		c.shutdown();
+    	}
+    }
+
+    /**
+     * Returns the dirty page table for a fuzzy checkpoint: the recLSN of
+     * every page with logged updates that may not be on disk yet. Does
+     * not take the buffer pool lock.
+     */
+    public Map<PageId,Long> getDirtyPageTable() {
+    	Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+    	for(BufferFrame frame: pageTable.frames()){
+    		long recLsn = frame.getRecLsn();
+    		if(recLsn != BufferFrame.NO_LSN){
+    			dirtyPages.put(frame.getId(), recLsn);
+    		}
+    	}
+    	return dirtyPages;
+    }
+
+    /**
+     * Writes back up to maxPages dirty pages whose updates are already in
+     * the log, and marks them clean. The log is forced up to the highest
+     * page LSN first, so no page reaches the disk ahead of its log records.
+     *
+     * @return number of pages written
+     */
+    public int writeBackPages(int maxPages) throws IOException {
+    	List<BufferFrame> dirty = new ArrayList<BufferFrame>();
+    	long maxLsn = 0;
+    	for(BufferFrame frame: pageTable.frames()){
+    		if(dirty.size() == maxPages){
+    			break;
+    		}
+    		if(frame.isCleanable()){
+    			dirty.add(frame);
+    			maxLsn = Math.max(maxLsn, frame.getPage().getLSN());
+    		}
+    	}
+    	if(dirty.isEmpty()){
+    		return 0;
+    	}
+    	
+    	// write ahead log rule
+    	Database.getLogFile().force(maxLsn);
+    	
+    	int written = 0;
+    	for(BufferFrame frame: dirty){
+    		if(writeLogged(frame)){
+    			written++;
+    		}
+    	}
+    	writeBacks.addAndGet(written);
+    	return written;
+    }
+
+    // writes a page whose update is in the log, once the log is on disk up to
+    // the page LSN; the caller forces the log first
+    private boolean writeLogged(BufferFrame frame) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	synchronized(frame){
+    		Page page = frame.getPage();
+    		if(!frame.isCleanable() || page.getLSN() >= log.getFlushedLsn()){
+    			return false;
+    		}
+    		DbFile dbfile = Database.getCatalog().getDatabaseFile(frame.getId().getTableId());
+    		dbfile.writePage(page);
+    		page.markDirty(false, null);
+    		frame.setLogged(null);
+    		frame.clearRecLsn();
+    		return true;
+    	}
     }
 
     /**
@@ -117,6 +547,10 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On abort, pages the transaction changed without logging the change
+     * get their before image back. Changes in the log are undone by
+     * {@link LogFile#rollback} before.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -125,9 +559,53 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	List<BufferFrame> held = tid == null ? null : pins.remove(tid);
+    	if(held != null){
+    		synchronized(held){
+    			for(BufferFrame frame: held){
+    				frame.unpin();
+    			}
+    		}
+    	}
+    	if(!readAheads.isEmpty()){
+    		// nothing left to read ahead for tid
+    		for(Map.Entry<PageId, ReadAhead.Prefetch> e: readAheads.entrySet()){
+    			ReadAhead.Prefetch prefetch = e.getValue();
+    			if(Objects.equals(prefetch.owner.tid, tid) && readAheads.remove(e.getKey(), prefetch)){
+    				prefetch.read.cancel(false);
+    			}
+    		}
+    	}
+    	if(!commit && tid != null){
+    		// rollback undid the changes of tid in the log; the others are
+    		// only here, on pages that may also hold committed updates
+    		synchronized(this){
+    			for(PageId pid: lockManager.getDirtyPageIds(tid)){
+    				BufferFrame frame = pageTable.get(pid);
+    				TransactionId dirty = frame == null ? null : frame.isDirty();
+    				if(dirty != null && tid.equals(dirty)){
+    					restoreBeforeImage(frame);
+    				}
+    			}
+    		}
+    	}
     	lockManager.unlock(tid);
     }
 
+    // puts the page in the frame back as it was before its dirtying
+    // transaction changed it, the last committed state; the disk may not
+    // have that yet while the cleaner runs, so it stays dirty and is written
+    // back like a logged page
+    private void restoreBeforeImage(BufferFrame frame) {
+    	Page page = frame.getPage();
+    	TransactionId tid = page.isDirty();
+    	Page before = page.getBeforeImage();
+    	before.setLSN(page.getLSN());
+    	before.markDirty(true, tid);
+    	frame.setPage(before);
+    	frame.setLogged(tid);
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock 
@@ -148,10 +626,62 @@ public class BufferPool {
         // not necessary for lab1
     	DbFile df = Database.getCatalog().getDatabaseFile(tableId);
     	List<Page> lp = df.insertTuple(tid, t);
-    	for(int i=0;i<lp.size();i++){
-    		lp.get(i).markDirty(true, tid);
-    		pageStore.put(lp.get(i).getId().hashCode(), lp.get(i));
+    	for(Page page: lp){
+    		dirtied(tid, page);
+    		unpinPage(tid, page.getId());
+    	}
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, like {@link #insertTuple} does for one tuple.
+     * <p>
+     * The pages the batch fills go through {@link #pageFilled}; the page
+     * the next batch may go on with is logged at commit as usual.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+    	DbFile df = Database.getCatalog().getDatabaseFile(tableId);
+    	List<Page> lp = df.insertTuples(tid, tuples);
+    	for(Page page: lp){
+    		dirtied(tid, page);
+    		unpinPage(tid, page.getId());
+    	}
+    }
+
+    /**
+     * Takes a page a batch insert of tid has filled and is done with:
+     * marks it dirty, logs it and unpins it. Being logged, the page may be
+     * written back before tid commits, so a load larger than the buffer
+     * pool does not run out of clean frames.
+     *
+     * @param tid the transaction that filled the page
+     * @param page the page, pinned by tid
+     * @see DbFile#insertTuples
+     */
+    public void pageFilled(TransactionId tid, Page page) throws IOException {
+    	BufferFrame frame = dirtied(tid, page);
+    	synchronized(this){
+    		logFrame(frame);
     	}
+    	unpinPage(tid, page.getId());
+    }
+
+    // marks a page changed by tid dirty and puts it in its frame
+    private BufferFrame dirtied(TransactionId tid, Page page) {
+    	page.markDirty(true, tid);
+    	BufferFrame added = new BufferFrame(page);
+    	BufferFrame frame = pageTable.putIfAbsent(added);
+    	if(frame == null){
+    		replacementPolicy.pageAdded(page.getId());
+    		return added;
+    	}
+    	frame.setPage(page);
+    	return frame;
     }
 
     /**
@@ -174,6 +704,7 @@ public class BufferPool {
     	DbFile df = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
     	Page p = df.deleteTuple(tid, t);
     	p.markDirty(true, tid);
+    	unpinPage(tid, p.getId());
     }
 
     /**
@@ -184,11 +715,8 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Iterator<Integer> it = pageStore.keySet().iterator();
-    	while(it.hasNext()){
-    		int pid = it.next();
-    		Page page = pageStore.get(pid);
-    		flushPage(page.getId());
+    	for(BufferFrame frame: pageTable.frames()){
+    		flushFrame(frame);
     	}
     }
 
@@ -200,12 +728,21 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
-    	if(pageStore.containsKey(pid.hashCode())){
-    		pageStore.remove(pid.hashCode());
+    	BufferFrame frame = pageTable.remove(pid);
+    	if(frame != null){
+    		frame.discard();
+    		replacementPolicy.pageRemoved(pid);
+    	}
+    	// the disk copy is about to be replaced
+    	dropReadAhead(pid);
+    }
+
+    // forgets page pid if it was read ahead, whose copy may be out of date
+    private void dropReadAhead(PageId pid) {
+    	ReadAhead.Prefetch prefetch = readAheads.isEmpty() ? null : readAheads.remove(pid);
+    	if(prefetch != null){
+    		prefetch.read.cancel(false);
     	}
-    	
-    	// 
-    	lockManager.unlock(pid);
     }
 
     /**
@@ -215,35 +752,98 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	if(pageStore.containsKey(pid.hashCode())){
-    		Page page = pageStore.get(pid.hashCode());
-    		TransactionId tid = page.isDirty();
-    		if(tid != null){
-    			Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-    	        Database.getLogFile().force();
-    	        
-    			DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    			dbfile.writePage(page);
-    			page.markDirty(false, tid);
-    			pageStore.put(pid.hashCode(),page);
-    		}
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame != null){
+    		flushFrame(frame);
+    	}
+    }
+
+    private synchronized void flushFrame(BufferFrame frame) throws IOException {
+    	Page page = frame.getPage();
+    	TransactionId tid = page.isDirty();
+    	if(tid != null){
+    		long lsn = logPage(frame, tid);
+    		Database.getLogFile().force(lsn);
+    		
+    		DbFile dbfile = Database.getCatalog().getDatabaseFile(frame.getId().getTableId());
+    		dbfile.writePage(page);
+    		page.markDirty(false, tid);
+    		frame.clearRecLsn();
     	}
     }
 
     /** Write all pages of the specified transaction to disk.
+     *  The pages are logged first and the log is forced once for all of
+     *  them. With a page cleaner running, the pages are only logged here
+     *  and written back later by the cleaner.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
     	Set<PageId> pids = lockManager.getDirtyPageIds(tid);
-    	for(PageId pid: pids){
-    		flushPage(pid);
-    		
-    		Page page = pageStore.get(pid.hashCode());
-    		page.setBeforeImage();
+    	List<BufferFrame> logged = new ArrayList<BufferFrame>();
+    	long maxLsn = 0;
+    	synchronized(this){
+    		for(PageId pid: pids){
+    			BufferFrame frame = pageTable.get(pid);
+    			if(frame != null){
+    				logFrame(frame);
+    				frame.getPage().setBeforeImage();
+    				logged.add(frame);
+    				maxLsn = Math.max(maxLsn, frame.getPage().getLSN());
+    			}
+    		}
+    	}
+    	
+    	if(cleaner == null && !logged.isEmpty()){
+    		// one force for all pages of the transaction, outside the buffer
+    		// pool lock so that concurrent commits share it
+    		Database.getLogFile().force(maxLsn);
+    		for(BufferFrame frame: logged){
+    			writeLogged(frame);
+    		}
     	}
     }
 
+    /**
+     * Logs the changes of tid that are not in the log yet, without writing
+     * the pages, so that {@link LogFile#rollback} finds all of them there.
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+    	for(PageId pid: lockManager.getDirtyPageIds(tid)){
+    		BufferFrame frame = pageTable.get(pid);
+    		TransactionId dirty = frame == null ? null : frame.isDirty();
+    		if(dirty != null && tid.equals(dirty)){
+    			logFrame(frame);
+    		}
+    	}
+    }
+
+    private void logFrame(BufferFrame frame) throws IOException {
+    	Page page = frame.getPage();
+    	TransactionId tid = page.isDirty();
+    	// a cleanable page has not changed since it was logged
+    	if(tid != null && !frame.isCleanable()){
+    		// forced by flushPages, or with the commit record
+    		logPage(frame, tid);
+    		frame.setLogged(tid);
+    	}
+    }
+
+    /** Logs the changes of tid to the page in the frame. Only the slots
+     *  changed since the page was last logged go into the record when
+     *  the log has a full image of the page already. */
+    private long logPage(BufferFrame frame, TransactionId tid) throws IOException {
+    	Page page = frame.getPage();
+    	// before the record is appended, so a checkpoint taken meanwhile
+    	// either finds the recLSN or has the record after it
+    	frame.markRecLsn(Database.getLogFile().getNextRecordLsn());
+    	long lsn = Database.getLogFile().logWrite(tid, null, page, frame.getLoggedData());
+    	page.setLSN(lsn);
+    	frame.setLoggedData(page.getPageData());
+    	return lsn;
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
@@ -251,28 +851,71 @@ public class BufferPool {
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-    	Iterator<Integer> it = pageStore.keySet().iterator();
-    	while(it.hasNext()){
-    		int pid = it.next();
-    		Page page = pageStore.get(pid);
-    		if(page.isDirty() == null){
-    			try {
-    				flushPage(page.getId());
-    				pageStore.remove(pid);
-    				
-    				// unlock all the locks this page hold
-    				lockManager.unlock(page.getId());
-    			} catch (IOException e) {
-    				// TODO Auto-generated catch block
-    				e.printStackTrace();
-    				throw new DbException("evictPage failed " + e.toString());
+    	while(true){
+    		PageId pid = replacementPolicy.chooseVictim(id -> {
+    			BufferFrame f = pageTable.get(id);
+    			return f != null && f.isEvictable();
+    		});
+    		if(pid == null){
+    			// the cleaner fell behind, write back logged pages ourselves
+    			if(writeBackPagesForEviction() > 0){
+    				continue;
     			}
-    			
+    			throw new DbException("evict page failed without a clean unpinned page!");
+    		}
+    		
+    		// a pin may have been taken since the victim was chosen
+    		BufferFrame frame = pageTable.get(pid);
+    		if(frame != null && frame.tryEvict()){
+    			evictFrame(frame);
     			return;
     		}
     	}
+    }
+
+    private int writeBackPagesForEviction() throws DbException {
+    	try {
+    		return writeBackPages(numPages);
+    	} catch (IOException e) {
+    		throw new DbException("write back failed " + e.toString());
+    	}
+    }
+
+    /**
+     * Frees the frame the scan read into ring.size() pages ago, if that
+     * page is still resident and clean.
+     *
+     * @return true if a frame was freed
+     */
+    private synchronized boolean reuseRingFrame(ScanRing ring) throws DbException {
+    	PageId pid = ring.current();
+    	if(pid == null){
+    		// ring is not full yet
+    		return false;
+    	}
+    	
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame == null || !frame.tryEvict()){
+    		return false;
+    	}
     	
-    	throw new DbException("evict page failed without a clean page!");
+    	evictFrame(frame);
+    	return true;
+    }
+
+    private synchronized void evictFrame(BufferFrame frame) throws DbException {
+    	PageId pid = frame.getId();
+    	try {
+    		flushFrame(frame);
+    		pageTable.remove(pid);
+    		replacementPolicy.pageRemoved(pid);
+    		evictions.incrementAndGet();
+    		dropReadAhead(pid);
+    	} catch (IOException e) {
+    		// TODO Auto-generated catch block
+    		e.printStackTrace();
+    		throw new DbException("evictPage failed " + e.toString());
+    	}
     }
 
 }
@@ -159,6 +159,19 @@ public class Catalog {
     	}
     }
     
+    /**
+     * Saves the free space maps of the heap files in the catalog. Called
+     * with every checkpoint, so that a restart finds the space freed before
+     * it.
+     */
+    public void saveFreeSpaceMaps() throws IOException {
+    	for(Table t: hashTable.values()){
+    		if(t.dbFile instanceof HeapFile){
+    			((HeapFile)t.dbFile).saveFreeSpaceMap();
+    		}
+    	}
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
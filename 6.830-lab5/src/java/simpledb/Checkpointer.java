@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * Checkpointer takes a fuzzy checkpoint of a {@link LogFile} whenever
+ * a given amount of log has been written since the last checkpoint, or a
+ * given time has passed and the log has grown at all. Frequent
+ * checkpoints keep restart short and let the log be truncated.
+ * <p>
+ * The checkpointer is off by default. It is started with
+ * {@link LogFile#startCheckpointer} or the simpledb.CheckpointMB and
+ * simpledb.CheckpointSeconds system properties
+ * (e.g. -Dsimpledb.CheckpointMB=64 -Dsimpledb.CheckpointSeconds=30).
+ *
+ * @see LogFile#logCheckpoint
+ */
+public class Checkpointer extends Thread {
+
+	/** How often the log size is looked at. */
+	public static final long POLL_MILLIS = 50;
+
+	private final LogFile log;
+	private final long bytes;
+	private final long intervalMillis;
+	private volatile boolean running = true;
+	private final Object pause = new Object();
+
+	/**
+	 * @param log the log to checkpoint
+	 * @param bytes log bytes between two checkpoints, 0 for no limit
+	 * @param intervalMillis time between two checkpoints, 0 for no limit
+	 */
+	public Checkpointer(LogFile log, long bytes, long intervalMillis) {
+		super("Checkpointer");
+		this.log = log;
+		this.bytes = bytes;
+		this.intervalMillis = intervalMillis;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		long last = System.currentTimeMillis();
+		while (true) {
+			synchronized (pause) {
+				if (!running) {
+					return;
+				}
+				try {
+					pause.wait(POLL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!running) {
+					return;
+				}
+			}
+
+			long grown = log.getNextRecordLsn() - log.getCheckpointLsn();
+			long now = System.currentTimeMillis();
+			if (grown > 0 && ((bytes > 0 && grown >= bytes)
+					|| (intervalMillis > 0 && now - last >= intervalMillis))) {
+				try {
+					log.logCheckpoint();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				last = now;
+			}
+		}
+	}
+
+	/**
+	 * Stops the checkpointer and waits for a checkpoint in progress to
+	 * finish. Not interrupted, see {@link PageCleaner#shutdown}.
+	 */
+	public void shutdown() {
+		synchronized (pause) {
+			running = false;
+			pause.notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
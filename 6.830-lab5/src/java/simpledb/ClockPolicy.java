@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array
+ * of slots, each with a reference bit that is set whenever the page is used.
+ * The clock hand sweeps the slots clearing reference bits, and the first
+ * evictable page found with a cleared bit is the victim.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+	private PageId[] slots;
+	private boolean[] referenced;
+	private final Map<PageId,Integer> slotOf;
+	private final Deque<Integer> freeSlots;
+	private int hand;
+
+	/**
+	 * @param numPages the number of frames of the buffer pool
+	 */
+	public ClockPolicy(int numPages) {
+		slots = new PageId[numPages];
+		referenced = new boolean[numPages];
+		slotOf = new HashMap<>();
+		freeSlots = new ArrayDeque<>();
+		for (int i = 0; i < numPages; i++) {
+			freeSlots.add(i);
+		}
+		hand = 0;
+	}
+
+	public synchronized void pageAdded(PageId pid) {
+		Integer slot = slotOf.get(pid);
+		if (slot == null) {
+			if (freeSlots.isEmpty()) {
+				// concurrent misses may briefly push the pool over its size
+				grow();
+			}
+			slot = freeSlots.poll();
+			slots[slot] = pid;
+			slotOf.put(pid, slot);
+		}
+		referenced[slot] = true;
+	}
+
+	public synchronized void pageAccessed(PageId pid) {
+		Integer slot = slotOf.get(pid);
+		if (slot == null) {
+			pageAdded(pid);
+		} else {
+			referenced[slot] = true;
+		}
+	}
+
+	public synchronized void pageRemoved(PageId pid) {
+		Integer slot = slotOf.remove(pid);
+		if (slot != null) {
+			slots[slot] = null;
+			referenced[slot] = false;
+			freeSlots.push(slot);
+		}
+	}
+
+	private void grow() {
+		int old = slots.length;
+		int size = Math.max(1, old * 2);
+		slots = Arrays.copyOf(slots, size);
+		referenced = Arrays.copyOf(referenced, size);
+		for (int i = old; i < size; i++) {
+			freeSlots.add(i);
+		}
+	}
+
+	public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+		// two full turns: the first one may only clear reference bits
+		for (int i = 0; i < 2 * slots.length; i++) {
+			int slot = hand;
+			hand = (hand + 1) % slots.length;
+
+			PageId pid = slots[slot];
+			if (pid == null) {
+				continue;
+			}
+			if (referenced[slot]) {
+				referenced[slot] = false;
+				continue;
+			}
+			if (evictable.test(pid)) {
+				return pid;
+			}
+		}
+
+		return null;
+	}
+}
@@ -20,9 +20,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final FileHandles _filehandles;
 
     private Database() {
         _catalog = new Catalog();
+        _filehandles = new FileHandles();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the open files of the static Database instance */
+    public static FileHandles getFileHandles() {
+        return _instance.get()._filehandles;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -59,6 +66,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.stopPageCleaner();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,6 +83,17 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        try {
+            _instance.get()._logfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        _instance.get()._bufferpool.stopPageCleaner();
+        try {
+            _instance.get()._filehandles.closeAll();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         _instance.set(new Database());
     }
 
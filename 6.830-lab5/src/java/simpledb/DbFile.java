@@ -36,6 +36,9 @@ public interface DbFile {
      * @param tid The transaction performing the update
      * @param t The tuple to add.  This tuple should be updated to reflect that
      *          it is now stored in this file.
+     * The modified pages are fetched with {@link BufferPool#getPage} and
+     * are still pinned when they are returned; the caller unpins them.
+     *
      * @return An ArrayList contain the pages that were modified
      * @throws DbException if the tuple cannot be added
      * @throws IOException if the needed file can't be read/written
@@ -43,11 +46,33 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, like
+     * {@link #insertTuple} for each of them, but filling one page after
+     * another instead of looking for room once per tuple.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, updated to reflect that they are now
+     *          stored in this file.
+     * The modified pages are fetched with {@link BufferPool#getPage}. A
+     * page is passed to {@link BufferPool#pageFilled} as soon as the batch
+     * fills it, so the batch keeps at most one page pinned however many it
+     * fills. The other modified pages are still pinned when they are
+     * returned; the caller unpins them.
+     *
+     * @return An ArrayList contain the modified pages that were not filled
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specifed tuple from the file on behalf of the specified
      * transaction.
      * This method will acquire a lock on the affected pages of the file, and
      * may block until the lock can be acquired.
+     * The returned page is still pinned; the caller unpins it.
      *
      * @throws DbException if the tuple cannot be deleted or is not a member
      *   of the file
@@ -58,7 +83,8 @@ public interface DbFile {
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
-     * {@link #readPage} to iterate through the pages.
+     * {@link #readPage} to iterate through the pages, and must unpin each
+     * page once it moves past it or is closed.
      *
      * @return an iterator over all the tuples stored in this DbFile.
      */
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileHandles keeps the FileChannels of the files of the database open
+ * between page reads and writes, shared by all threads. Page I/O uses the
+ * positional read(ByteBuffer, long) and write(ByteBuffer, long) of the
+ * channel, so threads reading different pages of the same file need no
+ * lock and reopen nothing.
+ * <p>
+ * At most maxOpen channels are kept open. Opening one more closes the
+ * least recently used channel no thread is using; channels in use are
+ * never closed, so the limit may be exceeded while all of them are busy.
+ * The limit is set with the simpledb.MaxOpenFiles property.
+ * <p>
+ * Callers hold a channel between {@link #acquire} and
+ * {@link Handle#release}:
+ * <pre>
+ * FileHandles.Handle h = Database.getFileHandles().acquire(file);
+ * try {
+ *     h.channel().read(buf, position);
+ * } finally {
+ *     h.release();
+ * }
+ * </pre>
+ *
+ * @Threadsafe
+ */
+public class FileHandles {
+
+	/** Default number of channels kept open. */
+	public static final int DEFAULT_MAX_OPEN = 256;
+
+	/** An open channel, counted while in use. */
+	public class Handle {
+		private final File file;
+		private final FileChannel channel;
+		// threads using the channel, CLOSED once closed
+		private final AtomicInteger users = new AtomicInteger();
+		private volatile long lastUsed;
+
+		Handle(File file, FileChannel channel) {
+			this.file = file;
+			this.channel = channel;
+		}
+
+		public FileChannel channel() {
+			return channel;
+		}
+
+		/** Lets the channel be closed again. */
+		public void release() {
+			lastUsed = clock.incrementAndGet();
+			users.decrementAndGet();
+		}
+
+		private boolean retain() {
+			while (true) {
+				int n = users.get();
+				if (n == CLOSED) {
+					return false;
+				}
+				if (users.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+		}
+
+		// closes the channel if no thread uses it
+		private boolean tryClose() throws IOException {
+			if (!users.compareAndSet(0, CLOSED)) {
+				return false;
+			}
+			handles.remove(file, this);
+			channel.close();
+			return true;
+		}
+	}
+
+	private static final int CLOSED = -1;
+
+	private final int maxOpen;
+	private final ConcurrentHashMap<File,Handle> handles = new ConcurrentHashMap<File,Handle>();
+	// orders the uses of handles, for LRU
+	private final AtomicLong clock = new AtomicLong();
+
+	public FileHandles() {
+		this(Integer.getInteger("simpledb.MaxOpenFiles", DEFAULT_MAX_OPEN));
+	}
+
+	/**
+	 * @param maxOpen number of channels kept open
+	 */
+	public FileHandles(int maxOpen) {
+		this.maxOpen = maxOpen;
+	}
+
+	/**
+	 * Returns the open channel of file, opening it (and creating the file)
+	 * if needed. The caller must release the handle when done with it.
+	 */
+	public Handle acquire(File file) throws IOException {
+		file = file.getAbsoluteFile();
+		while (true) {
+			Handle h = handles.get(file);
+			if (h == null) {
+				h = open(file);
+			}
+			if (h.retain()) {
+				if (h.channel.isOpen()) {
+					return h;
+				}
+				// closed by an interrupt during I/O
+				h.release();
+				handles.remove(file, h);
+				continue;
+			}
+			// closed by another thread in the meantime
+		}
+	}
+
+	private Handle open(File file) throws IOException {
+		synchronized (this) {
+			Handle h = handles.get(file);
+			if (h != null) {
+				return h;
+			}
+			while (handles.size() >= maxOpen && closeLeastRecentlyUsed()) {
+			}
+			h = new Handle(file, FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+			handles.put(file, h);
+			return h;
+		}
+	}
+
+	// closes the idle channel used longest ago, false if all are in use
+	private boolean closeLeastRecentlyUsed() throws IOException {
+		while (true) {
+			Handle lru = null;
+			for (Handle h : handles.values()) {
+				if (h.users.get() == 0 && (lru == null || h.lastUsed < lru.lastUsed)) {
+					lru = h;
+				}
+			}
+			if (lru == null) {
+				return false;
+			}
+			if (lru.tryClose()) {
+				return true;
+			}
+			// acquired since, look again
+		}
+	}
+
+	/**
+	 * Closes the channel of file if it is open and no thread uses it.
+	 *
+	 * @return false if a thread still uses the channel
+	 */
+	public boolean close(File file) throws IOException {
+		Handle h = handles.get(file.getAbsoluteFile());
+		return h == null || h.tryClose();
+	}
+
+	/** Closes every channel no thread uses. */
+	public void closeAll() throws IOException {
+		for (Handle h : handles.values()) {
+			h.tryClose();
+		}
+	}
+
+	/** @return the number of open channels */
+	public int openCount() {
+		return handles.size();
+	}
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap keeps one bit for every page of a heap file telling whether
+ * the page may have an empty slot, so that an insert goes straight to a
+ * page with room instead of reading full pages to find one.
+ * <p>
+ * The bits are hints. A page found full is cleared and the next one is
+ * tried, and space freed by a transaction that aborts later stays marked
+ * until the next insert finds out. Nothing depends on the map for
+ * correctness, so it is only saved to its file by {@link #save}, at every
+ * checkpoint and when the heap file is closed; the changes since the last
+ * save are lost in a crash. Pages added to the file since it was saved, or
+ * all but the last page if there is no saved map, count as full until a
+ * delete marks them, as if the file had been written by appending only.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+	private final File file;
+	// pages that may have room, null until loaded
+	private BitSet free;
+	// pages covered by free
+	private int pages;
+	// no page before it has its bit set
+	private int cursor;
+	private boolean changed;
+
+	/**
+	 * @param file where the map is saved
+	 */
+	public FreeSpaceMap(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns a page that may have an empty slot.
+	 *
+	 * @param numPages number of pages of the heap file
+	 * @return the lowest such page, or -1 if every page is full
+	 */
+	public synchronized int findPage(int numPages) {
+		load(numPages);
+		int page = free.nextSetBit(cursor);
+		cursor = page < 0 ? pages : page;
+		return page;
+	}
+
+	/**
+	 * Records whether page may have an empty slot.
+	 *
+	 * @param numPages number of pages of the heap file, page included
+	 */
+	public synchronized void setFree(int page, boolean hasRoom, int numPages) {
+		load(numPages);
+		if (page >= pages) {
+			pages = page + 1;
+		}
+		if (free.get(page) != hasRoom) {
+			free.set(page, hasRoom);
+			changed = true;
+		}
+		if (hasRoom && page < cursor) {
+			cursor = page;
+		}
+	}
+
+	// reads the saved map the first time it is needed, and covers pages
+	// added to the heap file since
+	private void load(int numPages) {
+		if (free == null) {
+			free = new BitSet();
+			pages = Math.max(0, numPages - 1);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				int saved = in.readInt();
+				byte[] bits = new byte[in.readInt()];
+				in.readFully(bits);
+				if (saved <= numPages) {
+					free = BitSet.valueOf(bits);
+					pages = saved;
+				}
+			} catch (FileNotFoundException e) {
+				// never saved
+			} catch (IOException e) {
+				// a partly written map, rebuilt from the deletes from now on
+			}
+		}
+		if (pages < numPages) {
+			// pages past those known are full but the last
+			free.set(numPages - 1);
+			cursor = Math.min(cursor, numPages - 1);
+			pages = numPages;
+		}
+	}
+
+	/**
+	 * Deletes the saved map, for a heap file created anew under the name of
+	 * an earlier one.
+	 */
+	public synchronized void delete() {
+		file.delete();
+		free = null;
+		cursor = 0;
+		changed = false;
+	}
+
+	/**
+	 * Writes the map to its file if it changed since it was loaded.
+	 */
+	public synchronized void save() throws IOException {
+		if (!changed) {
+			return;
+		}
+		byte[] bits = free.toByteArray();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(pages);
+			out.writeInt(bits.length);
+			out.write(bits);
+		}
+		changed = false;
+	}
+}
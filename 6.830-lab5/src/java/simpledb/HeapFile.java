@@ -1,7 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,6 +13,16 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Inserts go to a page the {@link FreeSpaceMap} of the file says has room,
+ * saved next to the file with the suffix ".fsm" at every checkpoint, see
+ * {@link Catalog#saveFreeSpaceMaps}. When there is none, a
+ * page is added past the end of the file. It starts empty in the buffer
+ * pool and reaches the disk the first time it is written back.
+ * <p>
+ * The number of pages is taken from the length of the file when the
+ * HeapFile is created, and kept up to date by writePage and inserts
+ * afterwards, so the file must not be changed but through its HeapFile.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +32,16 @@ public class HeapFile implements DbFile {
 	private final File file;
 	private final TupleDesc td;
 
+	private volatile boolean memoryMapped = Boolean.getBoolean("simpledb.HeapFileMmap");
+	// replaced whenever a chunk is mapped, never changed, so that reads
+	// need no lock
+	private volatile Mapping mapping = new Mapping(Long.getLong("simpledb.HeapFileMapMB", 64) << 20);
+
+	private final FreeSpaceMap freeSpace;
+	// pages of the file, including those handed out to inserts and not
+	// written yet
+	private final AtomicInteger pages;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -29,6 +53,12 @@ public class HeapFile implements DbFile {
         // some code goes here
     	this.file = f;
     	this.td = td;
+    	this.freeSpace = new FreeSpaceMap(new File(f.getPath() + ".fsm"));
+    	this.pages = new AtomicInteger((int)(f.length() / BufferPool.getPageSize()));
+    	if(pages.get() == 0){
+    		// a file without pages is new, a map next to it is left over
+    		freeSpace.delete();
+    	}
     }
 
     /**
@@ -70,34 +100,43 @@ public class HeapFile implements DbFile {
         // some code goes here
     	int tableId = pid.getTableId();
     	int pgNo = pid.pageNumber();
-    	
-    	RandomAccessFile f=null;
+    	int pageSize = BufferPool.getPageSize();
+    	long position = (long)pgNo * pageSize;
+
     	try{
-    		f = new RandomAccessFile(file, "r");
-        	if((pgNo+1)*BufferPool.getPageSize() > f.length()){
-        		f.close();
-        		throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
-        	}
-        	
-    		byte[] bytes = new byte[BufferPool.getPageSize()];
-        	f.seek(pgNo*BufferPool.getPageSize());
-        	int read = f.read(bytes, 0, BufferPool.getPageSize());
-        	if(read != BufferPool.getPageSize()){
-        		throw new IllegalArgumentException(String.format("table %d page %d read %d bytes", tableId, pgNo, read));
-        	}
-        	
-        	HeapPageId id = new HeapPageId(pid.getTableId(),pid.pageNumber());
-        	return new HeapPage(id,bytes);
-    	}catch(IOException e){
-    		e.printStackTrace();
-    	}finally{
+    		FileHandles.Handle h = Database.getFileHandles().acquire(file);
     		try{
-    			f.close();
-    		}catch(Exception e){
-    			e.printStackTrace();
+    			FileChannel ch = h.channel();
+    			if(pgNo < 0 || pgNo >= numPages()){
+    				throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
+    			}
+
+    			byte[] bytes = new byte[pageSize];
+    			ByteBuffer mapped = memoryMapped ? mapped(ch, position, pageSize) : null;
+    			if(mapped != null){
+    				mapped.get(bytes);
+    			}else{
+    				ByteBuffer buf = ByteBuffer.wrap(bytes);
+    				while(buf.hasRemaining()){
+    					if(ch.read(buf, position + buf.position()) < 0){
+    						if(buf.position() == 0){
+    							// added by an insert, not written yet
+    							break;
+    						}
+    						throw new IllegalArgumentException(String.format("table %d page %d read %d bytes", tableId, pgNo, buf.position()));
+    					}
+    				}
+    			}
+
+    			HeapPageId id = new HeapPageId(pid.getTableId(),pid.pageNumber());
+    			return HeapPage.wrap(id,bytes);
+    		}finally{
+    			h.release();
     		}
+    	}catch(IOException e){
+    		e.printStackTrace();
     	}
-    	
+
     	throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
     }
 
@@ -105,11 +144,117 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	int offset = page.getId().pageNumber() * BufferPool.PAGE_SIZE;
-    	RandomAccessFile rf = new RandomAccessFile(file, "rw");
-    	rf.seek(offset);
-        rf.write(page.getPageData());
-        rf.close();
+    	long offset = (long)page.getId().pageNumber() * BufferPool.getPageSize();
+    	ByteBuffer buf = ByteBuffer.wrap(page.getPageData());
+    	FileHandles.Handle h = Database.getFileHandles().acquire(file);
+    	try{
+    		while(buf.hasRemaining()){
+    			h.channel().write(buf, offset + buf.position());
+    		}
+    	}finally{
+    		h.release();
+    	}
+    	// recovery may write pages past those counted
+    	pages.accumulateAndGet(page.getId().pageNumber() + 1, Math::max);
+    }
+
+    /**
+     * Reads pages through a mapping of the file instead of read() calls
+     * on its channel. Pages in the last, partial chunk of the file are
+     * still read from the channel. Off unless the simpledb.HeapFileMmap
+     * property is set.
+     */
+    public void setMemoryMapped(boolean mapped) {
+    	memoryMapped = mapped;
+    }
+
+    /**
+     * Sets how many bytes of the file are mapped at a time, 64MB unless
+     * the simpledb.HeapFileMapMB property is set.
+     */
+    public synchronized void setMapChunkBytes(long bytes) {
+    	mapping = new Mapping(bytes);
+    }
+
+    /**
+     * Saves the free space map of this file if it changed since it was
+     * last saved.
+     */
+    public void saveFreeSpaceMap() throws IOException {
+    	freeSpace.save();
+    }
+
+    /**
+     * Saves the free space map, drops the mappings of this file and closes
+     * its channel in Database.getFileHandles() unless another thread is
+     * using it; the next read or write opens it again.
+     */
+    public synchronized void close() throws IOException {
+    	freeSpace.save();
+    	mapping = new Mapping(mapping.chunkBytes);
+    	Database.getFileHandles().close(file);
+    }
+
+    /**
+     * @return a view of the length bytes at position in the mapped chunk
+     * holding them, or null if they cross the end of the chunk or the
+     * chunk extends past the end of the file
+     */
+    private ByteBuffer mapped(FileChannel ch, long position, int length) throws IOException {
+    	Mapping m = mapping;
+    	int index = (int)(position / m.chunkBytes);
+    	long start = index * m.chunkBytes;
+    	if(position + length > start + m.chunkBytes){
+    		return null;
+    	}
+    	MappedByteBuffer chunk = index < m.chunks.length ? m.chunks[index] : null;
+    	if(chunk == null){
+    		chunk = mapChunk(ch, m.chunkBytes, index);
+    		if(chunk == null){
+    			return null;
+    		}
+    	}
+    	// the position of a mapping is shared, readers use their own view
+    	ByteBuffer view = chunk.duplicate();
+    	view.position((int)(position - start));
+    	return view;
+    }
+
+    // maps chunk index of chunkBytes, or returns null if the file does not
+    // reach its end yet or the chunk size has changed meanwhile
+    private synchronized MappedByteBuffer mapChunk(FileChannel ch, long chunkBytes, int index) throws IOException {
+    	Mapping m = mapping;
+    	if(m.chunkBytes != chunkBytes){
+    		return null;
+    	}
+    	if(index < m.chunks.length && m.chunks[index] != null){
+    		// mapped by another reader
+    		return m.chunks[index];
+    	}
+    	long start = index * chunkBytes;
+    	if(start + chunkBytes > ch.size()){
+    		return null;
+    	}
+    	MappedByteBuffer chunk = ch.map(FileChannel.MapMode.READ_ONLY, start, chunkBytes);
+    	MappedByteBuffer[] chunks = Arrays.copyOf(m.chunks, Math.max(m.chunks.length, index + 1));
+    	chunks[index] = chunk;
+    	mapping = new Mapping(chunkBytes, chunks);
+    	return chunk;
+    }
+
+    // chunks of chunkBytes mapped so far, lying wholly within the file
+    private static final class Mapping {
+    	final long chunkBytes;
+    	final MappedByteBuffer[] chunks;
+
+    	Mapping(long chunkBytes) {
+    		this(chunkBytes, new MappedByteBuffer[0]);
+    	}
+
+    	Mapping(long chunkBytes, MappedByteBuffer[] chunks) {
+    		this.chunkBytes = chunkBytes;
+    		this.chunks = chunks;
+    	}
     }
 
     /**
@@ -117,36 +262,84 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-    	int num = (int)Math.floor(file.length() * 1.0 / BufferPool.getPageSize());
-        return num;
+        return pages.get();
+    }
+
+    // n new pages past the others, empty until inserts use them
+    private int allocatePages(int n) {
+    	int first = pages.getAndAdd(n);
+    	for(int i=0;i<n;i++){
+    		freeSpace.setFree(first + i, true, first + n);
+    	}
+    	return first;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-    	int pageNo = numPages();
-    	if(pageNo > 0){
-    		pageNo = pageNo - 1;
+    	while(true){
+    		int pageNo = freeSpace.findPage(numPages());
+    		if(pageNo < 0){
+    			pageNo = allocatePages(1);
+    		}
+
+    		HeapPage p = pageWithRoom(tid, pageNo);
+    		if(p == null){
+    			continue;
+    		}
+
+    		p.insertTuple(t);
+    		if(p.getNumEmptySlots() == 0){
+    			freeSpace.setFree(pageNo, false, numPages());
+    		}
+    		ArrayList<Page> ls = new ArrayList<Page>();
+    		ls.add(p);
+    		return ls;
     	}
-    	
+        // not necessary for lab1
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+    	ArrayList<Page> ls = new ArrayList<Page>();
+    	int next = 0;
+    	while(next < tuples.size()){
+    		int pageNo = freeSpace.findPage(numPages());
+    		if(pageNo < 0){
+    			// the pages for the rest of the batch at once
+    			int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    			pageNo = allocatePages((tuples.size() - next + perPage - 1) / perPage);
+    		}
+
+    		HeapPage p = pageWithRoom(tid, pageNo);
+    		if(p == null){
+    			continue;
+    		}
+
+    		next = p.insertTuples(tuples, next);
+    		if(p.getNumEmptySlots() == 0){
+    			freeSpace.setFree(pageNo, false, numPages());
+    			Database.getBufferPool().pageFilled(tid, p);
+    		}else{
+    			ls.add(p);
+    		}
+    	}
+    	return ls;
+    }
+
+    // the page for writing, or null if it was filled since it was marked
+    private HeapPage pageWithRoom(TransactionId tid, int pageNo)
+            throws DbException, TransactionAbortedException {
     	HeapPageId pid = new HeapPageId(getId(), pageNo);
     	HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     	if(p.getNumEmptySlots() == 0){
-    		pid = new HeapPageId(getId(), pageNo+1);
-    		
-    		byte[] bytes = new byte[BufferPool.PAGE_SIZE];
-    		HeapPage hp = new HeapPage(pid, bytes);
-    		writePage(hp);
-    		
-        	p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    		freeSpace.setFree(pageNo, false, numPages());
+    		Database.getBufferPool().unpinPage(tid, pid);
+    		return null;
     	}
-    	
-    	p.insertTuple(t);
-    	ArrayList<Page> ls = new ArrayList<Page>();
-    	ls.add(p);
-        return ls;
-        // not necessary for lab1
+    	return p;
     }
 
     // see DbFile.java for javadocs
@@ -155,6 +348,7 @@ public class HeapFile implements DbFile {
         // some code goes here
     	HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
     	p.deleteTuple(t);
+    	freeSpace.setFree(p.getId().pageNumber(), true, numPages());
         return p;
         // not necessary for lab1
     }
@@ -171,6 +365,10 @@ public class HeapFile implements DbFile {
     	private final TransactionId tid;
     	private Iterator<Tuple> it;
     	private int whichPage;
+    	private ScanRing ring;
+    	private ReadAhead readAhead;
+    	// page pinned by the iterator, unpinned when the iterator moves on
+    	private HeapPageId pinned;
     	
     	public HeapFileIterator(HeapFile file, TransactionId tid){
     		heapFile = file; 
@@ -181,18 +379,33 @@ public class HeapFile implements DbFile {
 		public void open() throws DbException, TransactionAbortedException {
 			// TODO Auto-generated method stub
 			whichPage = 0;
+			ring = Database.getBufferPool().newScanRing(heapFile.numPages());
+			readAhead = Database.getBufferPool().newReadAhead(tid, heapFile.getId(), heapFile.numPages());
 			it = getPageTuples(whichPage);
 		}
 
 		private Iterator<Tuple> getPageTuples(int pageNumber) throws TransactionAbortedException, DbException{
 			if(pageNumber >= 0 && pageNumber < heapFile.numPages()){
 				HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
-				HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				// done with the previous page, its frame may be needed for this one
+				unpin();
+				HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
+				pinned = pid;
+				if(readAhead != null){
+					readAhead.accessed(pid);
+				}
 				return page.iterator();
 			}else{
 				throw new DbException(String.format("heapfile %d does not contain page %d!", pageNumber,heapFile.getId()));
 			}
 		}
+
+		private void unpin(){
+			if(pinned != null){
+				Database.getBufferPool().unpinPage(tid, pinned);
+				pinned = null;
+			}
+		}
 		
 		@Override
 		public boolean hasNext() throws DbException, TransactionAbortedException {
@@ -201,17 +414,16 @@ public class HeapFile implements DbFile {
 				return false;
 			}
 			
-			if(!it.hasNext()){
-				if(whichPage < (heapFile.numPages()-1)){
-					whichPage++;
-					it = getPageTuples(whichPage);
-					return it.hasNext();
-				}else{
+			// past pages without tuples, emptied by deletes or left by an
+			// insert that aborted
+			while(!it.hasNext()){
+				if(whichPage >= heapFile.numPages()-1){
 					return false;
 				}
-			}else{
-				return true;
+				whichPage++;
+				it = getPageTuples(whichPage);
 			}
+			return true;
 		}
 
 		@Override
@@ -233,7 +445,13 @@ public class HeapFile implements DbFile {
 		@Override
 		public void close() {
 			// TODO Auto-generated method stub
+			unpin();
 			it = null;
+			ring = null;
+			if(readAhead != null){
+				readAhead.close();
+				readAhead = null;
+			}
 		}
     }
 }
@@ -2,10 +2,23 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes in the on-disk format and reads header bits and
+ * fields in place. Tuples are only built when the iterator returns them,
+ * and inserts write the tuple's fields straight into the page, so reading
+ * a page and writing it back does not go through Tuple objects at all.
+ * An iterator keeps returning the page as it was when it was created; the
+ * first change after that goes to a copy of the bytes.
+ * <p>
+ * The before image is kept the same way: while the page has not changed
+ * since it was read or last committed, the current bytes are the before
+ * image. The first change takes the bytes as they are as the before image
+ * and goes on with a copy, so pages that are only read never copy any.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,15 +28,21 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
+    final int headerSize;
+    // the page in the on-disk format: header bits, then the slots;
+    // replaced by a copy on the first change after an iterator took it
+    private byte data[];
+    private ByteBuffer buf;
+    private boolean shared;
+
+    // the before image, or null while it is data itself
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
     
     private boolean dirty=false;
     private TransactionId tid=null;
+    private volatile long lsn=0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -42,25 +61,39 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, true);
+    }
+
+    /**
+     * Create a HeapPage that takes over data instead of copying it; the
+     * caller must not use the array afterwards.
+     */
+    static HeapPage wrap(HeapPageId id, byte[] data) throws IOException {
+        return new HeapPage(id, data, false);
+    }
+
+    private HeapPage(HeapPageId id, byte[] data, boolean copy) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        if (copy || data.length != BufferPool.getPageSize()) {
+            data = Arrays.copyOf(data, BufferPool.getPageSize());
+        }
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+
+        // empty slots and the padding are all zeroes, see getPageData
+        int slotSize = td.getSize();
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                Arrays.fill(data, slotOffset(i), slotOffset(i) + slotSize, (byte)0);
+            }
+        }
+        for (int i=numSlots; i<headerSize*8; i++) {
+            data[i/8] &= (byte)~(1 << (i%8));
         }
-        dis.close();
+        Arrays.fill(data, slotOffset(numSlots), data.length, (byte)0);
 
         setBeforeImage();
     }
@@ -91,7 +124,8 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                // a clean page's bytes become oldData before they change
+                oldDataRef = oldData != null ? oldData : data;
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -105,7 +139,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
         }
     }
 
@@ -117,37 +151,22 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Builds the tuple of a used slot from the page bytes.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
+    private Tuple readTuple(ByteBuffer buf, int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(buf, offset));
+            offset += type.getLen();
         }
-
         return t;
     }
 
@@ -163,64 +182,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -247,16 +209,18 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-    	for(int i=0;i<numSlots;i++){
-    		Tuple it = tuples[i];
-    		if(isSlotUsed(i) && it.getRecordId() != null && it.getRecordId().equals(t.getRecordId())){
-    			markSlotUsed(i,false);
-    			t.setRecordId(null);
-    			return;
-    		}
+    	RecordId rid = t.getRecordId();
+    	if(rid == null || !pid.equals(rid.getPageId())){
+    		throw new DbException("deleteTuple " + t);
     	}
-    	
-    	throw new DbException("deleteTuple " + t);
+    	int i = rid.tupleno();
+    	if(i < 0 || i >= numSlots || !isSlotUsed(i)){
+    		throw new DbException("deleteTuple " + t);
+    	}
+    	beforeChange();
+    	markSlotUsed(i,false);
+    	Arrays.fill(data, slotOffset(i), slotOffset(i) + td.getSize(), (byte)0);
+    	t.setRecordId(null);
     }
 
     /**
@@ -279,7 +243,8 @@ public class HeapPage implements Page {
     	
     	for(int i=0;i<numSlots;i++){
     		if(!isSlotUsed(i)){
-    			tuples[i] = t;
+    			beforeChange();
+    			writeTuple(i, t);
     			markSlotUsed(i,true);
     			RecordId rid = new RecordId(pid,i);
     			t.setRecordId(rid);
@@ -290,6 +255,65 @@ public class HeapPage implements Page {
     	throw new DbException("insertTuple " + t);
     }
 
+    /**
+     * Adds tuples to the empty slots of this page in slot order, starting
+     * with tuples.get(from), until the page is full or the list ends. The
+     * tuples are updated like by {@link #insertTuple}.
+     * @return the index in tuples of the first tuple not added
+     * @throws DbException if a tuple has another tupledesc
+     */
+    public int insertTuples(List<Tuple> tuples, int from) throws DbException {
+    	int next = from;
+    	for(int i=0;i<numSlots && next<tuples.size();i++){
+    		if(!isSlotUsed(i)){
+    			Tuple t = tuples.get(next);
+    			if(!td.equals(t.getTupleDesc())){
+    				throw new DbException("tupledesc mismatch");
+    			}
+    			beforeChange();
+    			writeTuple(i, t);
+    			markSlotUsed(i,true);
+    			t.setRecordId(new RecordId(pid,i));
+    			next++;
+    		}
+    	}
+    	return next;
+    }
+
+    // keeps the before image and the bytes iterators are reading as they are
+    private void beforeChange() {
+    	synchronized(oldDataLock){
+    		if(oldData == null){
+    			oldData = data;
+    			shared = true;
+    		}
+    	}
+    	if(shared){
+    		data = data.clone();
+    		buf = ByteBuffer.wrap(data);
+    		shared = false;
+    	}
+    }
+
+    // serializes the fields of t into slot slotId
+    private void writeTuple(int slotId, Tuple t) throws DbException {
+    	int slotSize = td.getSize();
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(slotSize);
+    	DataOutputStream dos = new DataOutputStream(baos);
+    	try{
+    		for(int j=0;j<td.numFields();j++){
+    			t.getField(j).serialize(dos);
+    		}
+    		dos.flush();
+    	}catch(IOException e){
+    		throw new DbException("insertTuple " + t + ": " + e);
+    	}
+    	if(baos.size() != slotSize){
+    		throw new DbException("insertTuple " + t + ": " + baos.size() + " bytes for a slot of " + slotSize);
+    	}
+    	System.arraycopy(baos.toByteArray(), 0, data, slotOffset(slotId), slotSize);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -313,18 +337,25 @@ public class HeapPage implements Page {
         return null;      
     }
 
+    public long getLSN() {
+    	return lsn;
+    }
+
+    public void setLSN(long lsn) {
+    	this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int num = 0;
-        for(int i=0;i<numSlots;i++){
-        	if(!isSlotUsed(i)){
-        		num++;
-        	}
+        // bits past numSlots are always clear
+        int used = 0;
+        for(int i=0;i<headerSize;i++){
+        	used += Integer.bitCount(data[i] & 0xff);
         }
-        return num;
+        return numSlots - used;
     }
 
     /**
@@ -335,7 +366,7 @@ public class HeapPage implements Page {
     	int quot = i / 8;
     	int remainder = i % 8;
     	
-    	int mark = header[quot];
+    	int mark = data[quot];
     	int bit = (mark >> remainder) & 0x01;
     	
         return bit == 1;
@@ -354,7 +385,7 @@ public class HeapPage implements Page {
     	int quot = i / 8;
     	int remainder = i % 8;
     	
-    	int oldByte = header[quot];
+    	int oldByte = data[quot];
     	int markBitByte = (1 << remainder) & 0x00ff;
     	int newByte = 0;
     	if(value){
@@ -364,7 +395,7 @@ public class HeapPage implements Page {
     		newByte = oldByte & markBitByte;
     	}
     	
-    	header[quot] = (byte)newByte;
+    	data[quot] = (byte)newByte;
     }
 
     /**
@@ -373,13 +404,35 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	ArrayList<Tuple> filledTuples = new ArrayList<Tuple>();
-    	for(int i=0;i<numSlots;i++){
-    		if(isSlotUsed(i)){
-    			filledTuples.add(tuples[i]);
+    	// the page as it is now, changes made while iterating go to a copy
+    	shared = true;
+    	final byte[] bytes = data;
+    	final ByteBuffer view = buf;
+    	return new Iterator<Tuple>() {
+    		private int next = nextUsed(0);
+
+    		private int nextUsed(int from) {
+    			int i = from;
+    			while(i < numSlots && (bytes[i / 8] & (1 << (i % 8))) == 0){
+    				i++;
+    			}
+    			return i;
     		}
-    	}
-        return filledTuples.iterator();
+
+    		@Override
+    		public boolean hasNext() {
+    			return next < numSlots;
+    		}
+
+    		@Override
+    		public Tuple next() {
+    			if(next >= numSlots){
+    				throw new NoSuchElementException();
+    			}
+    			Tuple t = readTuple(view, next);
+    			next = nextUsed(next + 1);
+    			return t;
+    		}
+    	};
     }
 }
-
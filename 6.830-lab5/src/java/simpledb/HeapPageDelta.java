@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HeapPageDelta is the compact form of an UPDATE log record for a
+ * {@link HeapPage}. Instead of the whole before and after images it keeps,
+ * for every slot that changed, the slot number, its header bit before and
+ * after, and the tuple bytes of the slot when the bit is set.
+ * <p>
+ * A tuple insert or delete logs one slot, a few dozen bytes instead of two
+ * full pages. Both redo and undo set the changed slots to absolute values,
+ * so applying a delta again, or to a page that already has it, is harmless.
+ *
+ * @see LogFile#logWrite(TransactionId, Page, Page, byte[])
+ */
+public class HeapPageDelta {
+
+	private static final int OLD_USED = 1;
+	private static final int NEW_USED = 2;
+
+	private final HeapPageId pid;
+	private final int slotSize;
+	private final int[] slots;
+	private final byte[] flags;
+	private final byte[][] oldData;
+	private final byte[][] newData;
+
+	private HeapPageDelta(HeapPageId pid, int slotSize, int n) {
+		this.pid = pid;
+		this.slotSize = slotSize;
+		this.slots = new int[n];
+		this.flags = new byte[n];
+		this.oldData = new byte[n][];
+		this.newData = new byte[n][];
+	}
+
+	/**
+	 * Computes the slots that differ between two versions of a page.
+	 *
+	 * @param page the page, gives the layout of the data
+	 * @param before data of the page as last logged
+	 * @param after current data of the page
+	 */
+	public static HeapPageDelta diff(HeapPage page, byte[] before, byte[] after) {
+		int slotSize = page.td.getSize();
+		int headerSize = page.headerSize;
+		int[] changed = new int[page.numSlots];
+		int n = 0;
+		for (int i = 0; i < page.numSlots; i++) {
+			boolean oldUsed = isUsed(before, i);
+			boolean newUsed = isUsed(after, i);
+			int from = headerSize + i * slotSize;
+			if (oldUsed != newUsed || (newUsed && !rangeEquals(before, after, from, slotSize))) {
+				changed[n++] = i;
+			}
+		}
+
+		HeapPageDelta delta = new HeapPageDelta(page.getId(), slotSize, n);
+		for (int k = 0; k < n; k++) {
+			int i = changed[k];
+			int from = headerSize + i * slotSize;
+			delta.slots[k] = i;
+			if (isUsed(before, i)) {
+				delta.flags[k] |= OLD_USED;
+				delta.oldData[k] = Arrays.copyOfRange(before, from, from + slotSize);
+			}
+			if (isUsed(after, i)) {
+				delta.flags[k] |= NEW_USED;
+				delta.newData[k] = Arrays.copyOfRange(after, from, from + slotSize);
+			}
+		}
+		return delta;
+	}
+
+	/** @return the page this delta applies to */
+	public HeapPageId getPageId() {
+		return pid;
+	}
+
+	/** @return number of changed slots */
+	public int size() {
+		return slots.length;
+	}
+
+	/** @return the delta that takes the page back, logged when this one is undone */
+	public HeapPageDelta inverse() {
+		HeapPageDelta inverse = new HeapPageDelta(pid, slotSize, slots.length);
+		for (int k = 0; k < slots.length; k++) {
+			inverse.slots[k] = slots[k];
+			inverse.flags[k] = (byte) (((flags[k] & OLD_USED) != 0 ? NEW_USED : 0)
+					| ((flags[k] & NEW_USED) != 0 ? OLD_USED : 0));
+			inverse.oldData[k] = newData[k];
+			inverse.newData[k] = oldData[k];
+		}
+		return inverse;
+	}
+
+	/** @return a copy of the page with the changed slots set to their new contents */
+	public HeapPage redo(HeapPage page) throws IOException {
+		return apply(page, NEW_USED, newData);
+	}
+
+	/** @return a copy of the page with the changed slots set to their old contents */
+	public HeapPage undo(HeapPage page) throws IOException {
+		return apply(page, OLD_USED, oldData);
+	}
+
+	private HeapPage apply(HeapPage page, int used, byte[][] contents) throws IOException {
+		byte[] data = page.getPageData();
+		int headerSize = page.headerSize;
+		for (int k = 0; k < slots.length; k++) {
+			int i = slots[k];
+			int from = headerSize + i * slotSize;
+			if ((flags[k] & used) != 0) {
+				data[i / 8] |= (byte) (1 << (i % 8));
+				System.arraycopy(contents[k], 0, data, from, slotSize);
+			} else {
+				// empty slots are all zeroes, see HeapPage.getPageData
+				data[i / 8] &= (byte) ~(1 << (i % 8));
+				Arrays.fill(data, from, from + slotSize, (byte) 0);
+			}
+		}
+		return HeapPage.wrap(page.getId(), data);
+	}
+
+	/**
+	 * Writes the delta as: table id, page number, slot size, number of
+	 * slots, then per slot its number, flags and the old and new tuple
+	 * bytes that are present.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(pid.getTableId());
+		out.writeInt(pid.pageNumber());
+		out.writeInt(slotSize);
+		out.writeInt(slots.length);
+		for (int k = 0; k < slots.length; k++) {
+			out.writeInt(slots[k]);
+			out.writeByte(flags[k]);
+			if (oldData[k] != null) {
+				out.write(oldData[k]);
+			}
+			if (newData[k] != null) {
+				out.write(newData[k]);
+			}
+		}
+	}
+
+	/** Reads a delta written by {@link #write}. */
+	public static HeapPageDelta read(DataInput in) throws IOException {
+		HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+		int slotSize = in.readInt();
+		int n = in.readInt();
+		HeapPageDelta delta = new HeapPageDelta(pid, slotSize, n);
+		for (int k = 0; k < n; k++) {
+			delta.slots[k] = in.readInt();
+			delta.flags[k] = in.readByte();
+			if ((delta.flags[k] & OLD_USED) != 0) {
+				delta.oldData[k] = new byte[slotSize];
+				in.readFully(delta.oldData[k]);
+			}
+			if ((delta.flags[k] & NEW_USED) != 0) {
+				delta.newData[k] = new byte[slotSize];
+				in.readFully(delta.newData[k]);
+			}
+		}
+		return delta;
+	}
+
+	private static boolean isUsed(byte[] data, int i) {
+		return ((data[i / 8] >> (i % 8)) & 0x01) == 1;
+	}
+
+	private static boolean rangeEquals(byte[] a, byte[] b, int from, int len) {
+		for (int j = from; j < from + len; j++) {
+			if (a[j] != b[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
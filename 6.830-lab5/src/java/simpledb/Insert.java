@@ -1,11 +1,18 @@
 package simpledb;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into
  * the tableid specified in the constructor
+ * <p>
+ * The tuples are passed to {@link BufferPool#insertTuples} in batches of
+ * BATCH_TUPLES, so the table is filled a page at a time.
  */
 public class Insert extends Operator {
+	/** Number of tuples inserted at once. */
+	public static final int BATCH_TUPLES = 4096;
+
 	private final TransactionId t;
 	private final DbIterator child;
 	private final int tableid;
@@ -73,15 +80,20 @@ public class Insert extends Operator {
     	called = true;
     	
     	int count = 0;
+    	ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_TUPLES);
     	
     	while(child.hasNext()){
-    		try {
-				Database.getBufferPool().insertTuple(t, tableid, child.next());
-				count++;
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+    		batch.add(child.next());
+    		if(batch.size() == BATCH_TUPLES || !child.hasNext()){
+    			try {
+					Database.getBufferPool().insertTuples(t, tableid, batch);
+					count += batch.size();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+    			batch.clear();
+    		}
     	}
     	
     	Type[] type = new Type[1];
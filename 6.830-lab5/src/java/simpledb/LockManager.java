@@ -1,267 +1,533 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 
- * lock manager provides lock service to transactions 
+ *
+ * lock manager provides lock service to transactions
  * when read/write buffer pool page
- * 
+ * <p>
+ * Every locked page has a {@link PageLock} with its own wait queue. A
+ * transaction that can not get its lock sleeps on the queue of that page
+ * and is woken as soon as a lock on the page is released, instead of
+ * polling.
+ * <p>
+ * The page locks are spread over hash-striped shards by PageId, each with
+ * its own latch, so transactions locking unrelated pages do not contend.
+ * The pages locked by a transaction are kept in concurrent sets. No thread
+ * ever holds the latches of two shards at once.
+ * <p>
+ * Deadlocks are detected with a waits-for graph that has an edge from each
+ * blocked transaction to the holders of the lock it waits for. The graph
+ * has its own monitor and is only touched by transactions that have to
+ * wait.
+ *
  */
 public class LockManager {
+	/**
+	 * Default time a transaction waits for a lock before it is aborted, in
+	 * ms. 0 means no timeout, deadlocks are broken by the waits-for graph.
+	 */
+	public static final long DEFAULT_LOCK_TIMEOUT = 0;
+
+	/** Default number of shards of the page lock table */
+	public static final int DEFAULT_SHARDS = 64;
+
+	/** Which transaction of a deadlock cycle is aborted */
+	public enum VictimPolicy {
+		/** the transaction that started last */
+		YOUNGEST,
+		/** the transaction holding the fewest locks, youngest on ties */
+		FEWEST_LOCKS
+	}
+
+	/**
+	 * Lock state of a single page. Guarded by the latch of its shard.
+	 */
+	private static class PageLock {
+		// transactions holding a shared lock
+		final Set<TransactionId> shared = new HashSet<>();
+
+		// transaction holding the exclusive lock, or null
+		TransactionId exclusive;
+
+		// signalled whenever a lock on this page is released
+		final Condition released;
+
+		// number of transactions sleeping on released
+		int waiters;
+
+		PageLock(Condition released){
+			this.released = released;
+		}
+
+		boolean isFree(){
+			return exclusive == null && shared.isEmpty() && waiters == 0;
+		}
+	}
+
+	/**
+	 * A stripe of the page lock table.
+	 */
+	private static class Shard {
+		final ReentrantLock latch = new ReentrantLock();
+
+		// lock state of the pages that are locked or waited for
+		final Map<PageId,PageLock> pageLocks = new HashMap<>();
+	}
+
+	/**
+	 * Where a blocked transaction sleeps, so a deadlock detected by another
+	 * thread can wake it.
+	 */
+	private static class Waiter {
+		final Shard shard;
+		final PageLock pageLock;
+
+		Waiter(Shard shard, PageLock pageLock){
+			this.shard = shard;
+			this.pageLock = pageLock;
+		}
+	}
+
 	// pages s_locked by a transaction
-	private final Map<TransactionId,Set<PageId>> txLocks_s;
-	
+	private final ConcurrentHashMap<TransactionId,Set<PageId>> txLocks_s;
+
 	// pages x_locked by a transaction
-	private final Map<TransactionId,Set<PageId>> txLocks_x;
-	
-	// pages hold shared lock
-	private final Map<PageId,Set<TransactionId>> s_pages;
-	
-	// pages hold exclusive lock
-	private final Map<PageId,Set<TransactionId>> x_pages;
-	
-	
+	private final ConcurrentHashMap<TransactionId,Set<PageId>> txLocks_x;
+
+	private final Shard[] shards;
+
+	// waits-for graph: blocked transaction -> transactions holding the lock
+	// it waits for. waitsFor, waitingOn and victims are guarded by waitsFor.
+	private final Map<TransactionId,Set<TransactionId>> waitsFor;
+
+	// where a blocked transaction sleeps
+	private final Map<TransactionId,Waiter> waitingOn;
+
+	// blocked transactions chosen as deadlock victims, not woken up yet
+	private final Set<TransactionId> victims;
+
+	private volatile long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+	private volatile VictimPolicy victimPolicy;
+
+	private final AtomicLong deadlocks = new AtomicLong();
+	private final AtomicLong victimsAborted = new AtomicLong();
+
+
+	/**
+	 * Creates a LockManager choosing deadlock victims by the policy named
+	 * by the simpledb.DeadlockVictim system property (youngest or
+	 * fewest_locks). The default is youngest.
+	 */
 	public LockManager(){
-		txLocks_s = new HashMap<>();
-		txLocks_x = new HashMap<>();
-		s_pages = new HashMap<>();
-		x_pages = new HashMap<>();
+		this(DEFAULT_SHARDS);
 	}
-	
-	public synchronized boolean holdsLock(TransactionId tid, PageId p){
-		if(s_pages.containsKey(p) && s_pages.get(p).contains(tid)){
-			return true;
+
+	/**
+	 * Creates a LockManager whose page lock table is split into the given
+	 * number of shards.
+	 *
+	 * @param numShards number of shards, rounded up to a power of two
+	 */
+	public LockManager(int numShards){
+		int n = 1;
+		while(n < numShards){
+			n <<= 1;
 		}
-		
-		if(x_pages.containsKey(p) && x_pages.get(p).contains(tid)){
-			return true;
+		shards = new Shard[n];
+		for(int i=0;i<n;i++){
+			shards[i] = new Shard();
 		}
-		
-		return false;
+
+		txLocks_s = new ConcurrentHashMap<>();
+		txLocks_x = new ConcurrentHashMap<>();
+		waitsFor = new HashMap<>();
+		waitingOn = new HashMap<>();
+		victims = new HashSet<>();
+		victimPolicy = VictimPolicy.valueOf(
+				System.getProperty("simpledb.DeadlockVictim", VictimPolicy.YOUNGEST.name()).toUpperCase());
 	}
-	
-	public void lock(TransactionId tid, PageId p, Permissions perm) throws TransactionAbortedException{
-		long start = System.currentTimeMillis();
-		
-		while(!doLock(tid,p,perm)){
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-			}
-			
-			if((System.currentTimeMillis() - start) > 250){
-				throw new TransactionAbortedException();
-			}
+
+	/**
+	 * Set how long a transaction waits for a lock before it is aborted
+	 * with a TransactionAbortedException, on top of deadlock detection.
+	 *
+	 * @param millis the timeout in milliseconds, 0 to wait until the lock
+	 *        is granted or the transaction is chosen as deadlock victim
+	 */
+	public void setLockTimeout(long millis){
+		lockTimeout = millis;
+	}
+
+	/** Set which transaction of a deadlock cycle is aborted. */
+	public void setVictimPolicy(VictimPolicy policy){
+		victimPolicy = policy;
+	}
+
+	// the concurrent maps take no null keys, so locks requested without a
+	// transaction are held by NO_TRANSACTION
+	private static final TransactionId NO_TRANSACTION = new TransactionId();
+
+	private static TransactionId txKey(TransactionId tid){
+		return tid == null ? NO_TRANSACTION : tid;
+	}
+
+	private Shard shardOf(PageId p){
+		int h = p.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & (shards.length - 1)];
+	}
+
+	public boolean holdsLock(TransactionId tid, PageId p){
+		tid = txKey(tid);
+		Shard shard = shardOf(p);
+		shard.latch.lock();
+		try{
+			PageLock pl = shard.pageLocks.get(p);
+			return pl != null && (pl.shared.contains(tid) || (pl.exclusive != null && pl.exclusive.equals(tid)));
+		}finally{
+			shard.latch.unlock();
 		}
 	}
-	
-	private synchronized boolean doLock(TransactionId tid, PageId p, Permissions perm){
-		if(perm.equals(Permissions.READ_ONLY)){
-			if(x_pages.containsKey(p)){
-				// txsΪ
-				Set<TransactionId> txs = x_pages.get(p);
-				if(txs.contains(tid)){
-					//write lock
-					return true;
-				}else{
-					// block, wait to get read lock
-					return false;
-				}
-			}else{
-				if(s_pages.containsKey(p)){
-					s_pages.get(p).add(tid);
-				}else{
-					Set<TransactionId> nset = new HashSet<>();
-					nset.add(tid);
-					s_pages.put(p, nset);
-				}
-				
-				if(txLocks_s.containsKey(tid)){
-					txLocks_s.get(tid).add(p);
-				}else{
-					Set<PageId> pSet = new HashSet<>();
-					pSet.add(p);
-					
-					txLocks_s.put(tid, pSet);
+
+	/**
+	 * Acquire a lock on page p for transaction tid, waiting until
+	 * conflicting locks are released.
+	 * <p>
+	 * Before going to sleep the waits-for graph is checked for a cycle
+	 * through tid. If there is one, a victim is chosen by the victim policy
+	 * and aborted right away, which is tid itself or another waiter of the
+	 * cycle.
+	 *
+	 * @throws TransactionAbortedException if tid was chosen as deadlock
+	 *         victim, or the lock could not be acquired within the lock
+	 *         timeout
+	 */
+	public void lock(TransactionId tid, PageId p, Permissions perm) throws TransactionAbortedException{
+		tid = txKey(tid);
+		Shard shard = shardOf(p);
+		shard.latch.lock();
+		PageLock pl = shard.pageLocks.get(p);
+		if(pl == null){
+			pl = new PageLock(shard.latch.newCondition());
+			shard.pageLocks.put(p, pl);
+		}
+
+		boolean granted = false;
+		boolean waited = false;
+		try{
+			long timeout = lockTimeout;
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+			while(true){
+				if(waited && isVictim(tid)){
+					throw deadlockAbort();
 				}
-				
-				return true;
-			}
-		}else{
-			if(x_pages.containsKey(p)){
-				// txsΪ
-				Set<TransactionId> txs = x_pages.get(p);
-				if(txs.contains(tid)){
-					//write lock
-					return true;
-				}else{
-					// block, wait to get write lock
-					return false;
+				if(doLock(tid, p, pl, perm)){
+					granted = true;
+					return;
 				}
-			}else{
-				if(s_pages.containsKey(p)){
-					Set<TransactionId> tSet = s_pages.get(p);
-					if(tSet.contains(tid)){
-						if(tSet.size() == 1){
-							// grant write lock
-							Set<TransactionId> nset = new HashSet<>();
-							nset.add(tid);
-							x_pages.put(p, nset);
-							
-							if(txLocks_x.containsKey(tid)){
-								txLocks_x.get(tid).add(p);
-							}else{
-								Set<PageId> pSet = new HashSet<>();
-								pSet.add(p);
-								txLocks_x.put(tid, pSet);
-							}
-							
-							// release read lock
-							s_pages.get(p).remove(tid);
-							if(s_pages.get(p).isEmpty()){
-								s_pages.remove(p);
-							}
-							
-							txLocks_s.get(tid).remove(p);
-							if(txLocks_s.get(tid).isEmpty()){
-								txLocks_s.remove(tid);
-							}
-							
-							return true;
-						}else{
-							// block
-							return false;
+
+				waited = true;
+				Waiter wake = null;
+				synchronized(waitsFor){
+					waitsFor.put(tid, blockers(tid, pl));
+					waitingOn.put(tid, new Waiter(shard, pl));
+					List<TransactionId> cycle = findCycle(tid);
+					if(cycle != null){
+						deadlocks.incrementAndGet();
+						victimsAborted.incrementAndGet();
+						TransactionId victim = chooseVictim(cycle);
+						if(victim.equals(tid)){
+							throw deadlockAbort();
 						}
-					}else{
-						// block
-						return false;
+						victims.add(victim);
+						wake = waitingOn.get(victim);
 					}
-				}else{
-					Set<TransactionId> nset = new HashSet<>();
-					nset.add(tid);
-					x_pages.put(p, nset);
-					
-					if(txLocks_x.containsKey(tid)){
-						txLocks_x.get(tid).add(p);
+				}
+
+				if(wake != null && wake.shard == shard){
+					wake.pageLock.released.signalAll();
+				}else if(wake != null){
+					// never hold two shard latches, wake the victim without ours
+					shard.latch.unlock();
+					try{
+						signal(wake);
+					}finally{
+						shard.latch.lock();
+					}
+					// the page may have been released meanwhile
+					continue;
+				}
+
+				if(timeout > 0 && remaining <= 0){
+					throw new TransactionAbortedException();
+				}
+
+				pl.waiters++;
+				try{
+					if(timeout > 0){
+						remaining = pl.released.awaitNanos(remaining);
 					}else{
-						Set<PageId> pSet = new HashSet<>();
-						pSet.add(p);
-						txLocks_x.put(tid, pSet);
+						pl.released.await();
 					}
-					
-					return true;
+				}catch(InterruptedException e){
+					throw new TransactionAbortedException();
+				}finally{
+					pl.waiters--;
+				}
+			}
+		}finally{
+			if(waited){
+				synchronized(waitsFor){
+					waitsFor.remove(tid);
+					waitingOn.remove(tid);
+					victims.remove(tid);
 				}
 			}
+			if(!granted){
+				release(shard, p, pl);
+			}
+			shard.latch.unlock();
 		}
 	}
-	
-	// unlock page p by transaction tid
-	public synchronized void unlock(TransactionId tid, PageId p){
-		if(txLocks_s.containsKey(tid)){
-			txLocks_s.get(tid).remove(p);
-			if(txLocks_s.get(tid).isEmpty()){
-				txLocks_s.remove(tid);
-			}
+
+	private boolean isVictim(TransactionId tid){
+		synchronized(waitsFor){
+			return victims.contains(tid);
 		}
-		
-		if(txLocks_x.containsKey(tid)){
-			txLocks_x.get(tid).remove(p);
-			if(txLocks_x.get(tid).isEmpty()){
-				txLocks_x.remove(tid);
-			}
+	}
+
+	private static void signal(Waiter w){
+		w.shard.latch.lock();
+		try{
+			w.pageLock.released.signalAll();
+		}finally{
+			w.shard.latch.unlock();
+		}
+	}
+
+	private static TransactionAbortedException deadlockAbort(){
+		TransactionAbortedException e = new TransactionAbortedException();
+		e.initCause(new DeadlockException());
+		return e;
+	}
+
+	// transactions whose locks on pl keep tid waiting, must hold shard latch
+	private static Set<TransactionId> blockers(TransactionId tid, PageLock pl){
+		Set<TransactionId> holders = new HashSet<>(pl.shared);
+		if(pl.exclusive != null){
+			holders.add(pl.exclusive);
+		}
+		holders.remove(tid);
+		return holders;
+	}
+
+	/**
+	 * Looks for a cycle through tid in the waits-for graph. Transactions
+	 * already chosen as victims are about to leave the graph and are
+	 * skipped, so a deadlock is only resolved once. Must hold the monitor
+	 * of waitsFor.
+	 * <p>
+	 * Edges of other waiters are recorded under their own shard latch and
+	 * can be stale for a moment after a release, so a cycle may very rarely
+	 * be reported for a lock that was just given up.
+	 *
+	 * @return the transactions on the cycle, or null if there is none
+	 */
+	private List<TransactionId> findCycle(TransactionId tid){
+		List<TransactionId> path = new ArrayList<>();
+		path.add(tid);
+		if(findPath(tid, tid, path, new HashSet<TransactionId>())){
+			return path;
+		}
+		return null;
+	}
+
+	// depth-first search for a path from "from" back to target
+	private boolean findPath(TransactionId from, TransactionId target, List<TransactionId> path, Set<TransactionId> visited){
+		Set<TransactionId> next = waitsFor.get(from);
+		if(next == null){
+			return false;
 		}
-		
-		if(s_pages.containsKey(p)){
-			s_pages.get(p).remove(tid);
-			if(s_pages.get(p).isEmpty()){
-				s_pages.remove(p);
+
+		for(TransactionId t: next){
+			if(victims.contains(t)){
+				continue;
+			}
+			if(t.equals(target)){
+				return true;
+			}
+			if(visited.add(t)){
+				path.add(t);
+				if(findPath(t, target, path, visited)){
+					return true;
+				}
+				path.remove(path.size() - 1);
 			}
 		}
-		
-		if(x_pages.containsKey(p)){
-			x_pages.get(p).remove(tid);
-			if(x_pages.get(p).isEmpty()){
-				x_pages.remove(p);
+		return false;
+	}
+
+	private TransactionId chooseVictim(List<TransactionId> cycle){
+		TransactionId victim = null;
+		int victimLocks = 0;
+		for(TransactionId t: cycle){
+			int locks = 0;
+			if(victimPolicy == VictimPolicy.FEWEST_LOCKS){
+				locks = count(txLocks_s.get(t)) + count(txLocks_x.get(t));
+			}
+
+			if(victim == null || locks < victimLocks
+					|| (locks == victimLocks && t.getId() > victim.getId())){
+				victim = t;
+				victimLocks = locks;
 			}
 		}
+		return victim;
 	}
 
-	public synchronized void unlock(TransactionId tid){
-		if(txLocks_s.containsKey(tid)){
-			Set<PageId> sSet = txLocks_s.get(tid);
-			for(PageId id: sSet){
-				if(s_pages.containsKey(id)){
-					s_pages.get(id).remove(tid);
-					if(s_pages.get(id).isEmpty()){
-						s_pages.remove(id);
-					}
-				}
+	private static int count(Set<PageId> pids){
+		return pids == null ? 0 : pids.size();
+	}
+
+	/** @return number of deadlocks found in the waits-for graph */
+	public long getDeadlockCount(){
+		return deadlocks.get();
+	}
+
+	/** @return number of transactions aborted to break a deadlock */
+	public long getVictimCount(){
+		return victimsAborted.get();
+	}
+
+	// try to grant the lock, must hold shard latch
+	private boolean doLock(TransactionId tid, PageId p, PageLock pl, Permissions perm){
+		if(pl.exclusive != null){
+			// an exclusive lock covers both read and write
+			return pl.exclusive.equals(tid);
+		}
+
+		if(perm.equals(Permissions.READ_ONLY)){
+			if(pl.shared.add(tid)){
+				addTxLock(txLocks_s, tid, p);
 			}
-			
-			txLocks_s.remove(tid);
+			return true;
 		}
-		
-		if(txLocks_x.containsKey(tid)){
-			Set<PageId> tSet = txLocks_x.get(tid);
-			for(PageId id: tSet){
-				if(x_pages.containsKey(id)){
-					x_pages.get(id).remove(tid);
-					if(x_pages.get(id).isEmpty()){
-						x_pages.remove(id);
-					}
-				}
+
+		if(pl.shared.isEmpty() || (pl.shared.size() == 1 && pl.shared.contains(tid))){
+			// grant write lock, upgrading the read lock if tid holds one
+			if(pl.shared.remove(tid)){
+				removeTxLock(txLocks_s, tid, p);
 			}
-			
-			txLocks_x.remove(tid);
+			pl.exclusive = tid;
+			addTxLock(txLocks_x, tid, p);
+			return true;
 		}
+
+		// block
+		return false;
 	}
-	
-	public synchronized void unlock(PageId pid){
-		if(s_pages.containsKey(pid)){
-			Set<TransactionId> tids = s_pages.get(pid);
-			for(TransactionId tid: tids){
-				if(txLocks_s.containsKey(tid)){
-					txLocks_s.get(tid).remove(pid);
-					if(txLocks_s.get(tid).isEmpty()){
-						txLocks_s.remove(tid);
-					}
-				}
+
+	private static void addTxLock(ConcurrentHashMap<TransactionId,Set<PageId>> txLocks, TransactionId tid, PageId p){
+		Set<PageId> pSet = txLocks.get(tid);
+		if(pSet == null){
+			pSet = txLocks.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+		}
+		pSet.add(p);
+	}
+
+	// empty sets stay in place until unlock(tid), so that a concurrent
+	// addTxLock of the same transaction never adds to a dropped set
+	private static void removeTxLock(ConcurrentHashMap<TransactionId,Set<PageId>> txLocks, TransactionId tid, PageId p){
+		Set<PageId> pSet = txLocks.get(tid);
+		if(pSet != null){
+			pSet.remove(p);
+		}
+	}
+
+	// release tid's lock on p without touching the per-transaction sets
+	private boolean releasePageLock(TransactionId tid, PageLock pl){
+		boolean released = pl.shared.remove(tid);
+		if(pl.exclusive != null && pl.exclusive.equals(tid)){
+			pl.exclusive = null;
+			released = true;
+		}
+		return released;
+	}
+
+	// wake the waiters of p after a release, drop the entry when unused
+	private void release(Shard shard, PageId p, PageLock pl){
+		if(pl.waiters > 0){
+			pl.released.signalAll();
+		}else if(pl.isFree()){
+			shard.pageLocks.remove(p);
+		}
+	}
+
+	// unlock page p by transaction tid
+	public void unlock(TransactionId tid, PageId p){
+		tid = txKey(tid);
+		Shard shard = shardOf(p);
+		shard.latch.lock();
+		try{
+			removeTxLock(txLocks_s, tid, p);
+			removeTxLock(txLocks_x, tid, p);
+
+			PageLock pl = shard.pageLocks.get(p);
+			if(pl != null && releasePageLock(tid, pl)){
+				release(shard, p, pl);
 			}
-			
-			s_pages.remove(pid);
+		}finally{
+			shard.latch.unlock();
 		}
-		
-		if(x_pages.containsKey(pid)){
-			Set<TransactionId> tids = x_pages.get(pid);
-			for(TransactionId tid: tids){
-				if(txLocks_x.containsKey(tid)){
-					txLocks_x.get(tid).remove(pid);
-					if(txLocks_x.get(tid).isEmpty()){
-						txLocks_x.remove(tid);
-					}
+	}
+
+	public void unlock(TransactionId tid){
+		tid = txKey(tid);
+		unlockAll(txLocks_s.remove(tid), tid);
+		unlockAll(txLocks_x.remove(tid), tid);
+	}
+
+	private void unlockAll(Set<PageId> pids, TransactionId tid){
+		if(pids == null){
+			return;
+		}
+
+		for(PageId id: pids){
+			Shard shard = shardOf(id);
+			shard.latch.lock();
+			try{
+				PageLock pl = shard.pageLocks.get(id);
+				if(pl != null && releasePageLock(tid, pl)){
+					release(shard, id, pl);
 				}
+			}finally{
+				shard.latch.unlock();
 			}
-			
-			x_pages.remove(pid);
 		}
 	}
 
 	/**
-	 * return all pages x_locked by a certain transaction, used 
+	 * return all pages x_locked by a certain transaction, used
 	 * in commit or abort
-	 */ 
-	public synchronized Set<PageId> getDirtyPageIds(TransactionId id){
-		if(txLocks_x.containsKey(id)){
-			return txLocks_x.get(id);
+	 */
+	public Set<PageId> getDirtyPageIds(TransactionId id){
+		Set<PageId> pids = txLocks_x.get(txKey(id));
+		if(pids != null){
+			return new HashSet<PageId>(pids);
 		}
-		
+
 		return new HashSet<PageId>();
 	}
 }
-
-
-
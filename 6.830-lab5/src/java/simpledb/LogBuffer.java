@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer collects the records appended to the {@link LogFile} in memory
+ * and writes them to the log file in large chunks, instead of a system call
+ * for every field of every record.
+ * <p>
+ * The buffer is a ring of direct ByteBuffer segments. Records are appended
+ * at the tail; {@link #drain} writes every segment from the head up to the
+ * tail to the file. If the ring fills up, the oldest segments are written
+ * to make room.
+ * <p>
+ * Every byte ever appended has a log sequence number (LSN), its position in
+ * the stream of all appended bytes. LSNs keep growing when the log file is
+ * truncated, unlike file offsets.
+ * <p>
+ * Not thread safe, the LogFile appends and drains under its own lock; the
+ * LSN counters can be read without it.
+ */
+public class LogBuffer extends OutputStream {
+
+	/** Where drained bytes go: a file, or the segments of a log. */
+	public interface Sink {
+		/** Writes bytes at a position, returns how many were written. */
+		int write(ByteBuffer src, long position) throws IOException;
+	}
+
+	/** Bytes per segment. */
+	public static final int SEGMENT_SIZE = 64 * 1024;
+	/** Default number of segments in the ring. */
+	public static final int DEFAULT_SEGMENTS = 16;
+
+	private final ByteBuffer[] ring;
+	private int head; // oldest segment with data not yet written
+	private int tail; // segment being filled
+
+	private Sink file;
+	private long filePosition; // where the next drained byte goes
+
+	private volatile long appendedLsn; // LSN of the next appended byte
+	private volatile long writtenLsn; // bytes before this LSN are in the file
+
+	/**
+	 * @param segments number of segments in the ring
+	 */
+	public LogBuffer(int segments) {
+		ring = new ByteBuffer[segments];
+		for (int i = 0; i < segments; i++) {
+			ring[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+		}
+	}
+
+	/**
+	 * Points the buffer at the end of a log file. Must only be called with
+	 * the buffer drained.
+	 *
+	 * @param channel the log file
+	 * @param end the file offset appended records are written at
+	 */
+	public void setFile(FileChannel channel, long end) {
+		setFile((Sink) channel::write, end);
+	}
+
+	/**
+	 * Points the buffer at the end of a sink, see {@link #setFile(FileChannel, long)}.
+	 */
+	public void setFile(Sink file, long end) {
+		this.file = file;
+		this.filePosition = end;
+	}
+
+	/** @return the file offset the next appended byte will be written at */
+	public long filePointer() {
+		return filePosition + (appendedLsn - writtenLsn);
+	}
+
+	/** @return LSN of the next appended byte */
+	public long appendedLsn() {
+		return appendedLsn;
+	}
+
+	/** @return LSN up to which the appended bytes are in the log file */
+	public long writtenLsn() {
+		return writtenLsn;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!ring[tail].hasRemaining()) {
+			nextSegment();
+		}
+		ring[tail].put((byte) b);
+		appendedLsn++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!ring[tail].hasRemaining()) {
+				nextSegment();
+			}
+			int n = Math.min(len, ring[tail].remaining());
+			ring[tail].put(b, off, n);
+			off += n;
+			len -= n;
+			appendedLsn += n;
+		}
+	}
+
+	private void nextSegment() throws IOException {
+		int next = (tail + 1) % ring.length;
+		if (next == head) {
+			// ring is full, make room
+			drain();
+			return;
+		}
+		tail = next;
+	}
+
+	/**
+	 * Writes all buffered bytes to the log file. Does not force it.
+	 *
+	 * @return the LSN up to which bytes are now in the file
+	 */
+	public long drain() throws IOException {
+		while (true) {
+			ByteBuffer segment = ring[head];
+			segment.flip();
+			while (segment.hasRemaining()) {
+				filePosition += file.write(segment, filePosition);
+			}
+			segment.clear();
+			if (head == tail) {
+				break;
+			}
+			head = (head + 1) % ring.length;
+		}
+		writtenLsn = appendedLsn;
+		return writtenLsn;
+	}
+}
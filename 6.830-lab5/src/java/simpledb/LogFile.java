@@ -2,9 +2,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.Map.Entry;
-import java.lang.reflect.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -33,6 +36,18 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Records are appended to an in-memory LogBuffer, not to the file, and
+every record has a log sequence number (LSN).  Forcing the log does not
+hold the LogFile lock for the FileChannel.force(); a thread that needs its
+records on disk waits until the flushed LSN passes its own.  One waiting
+thread at a time becomes the leader, writes the buffer to the file and
+forces it for everybody whose records were appended before, so concurrent
+commits share one FileChannel.force().  A committing leader may wait for a short window
+first to let more commits join the batch, see setGroupCommit().
 */
 
 /**
@@ -40,33 +55,56 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds one long integer, the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to it, see
+LogSegments.  Offsets of records are positions in the sequence of all
+segments, and do not change while a record is kept.  Log records are
+variable length; zeroes follow the last one.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer header, a long integer
+transaction id and a long integer prevLSN: the offset of the previous
+record of the same transaction, or -1 for its first record.  The upper
+16 bits of the header are the version of the record format
+(LOG_VERSION), the lower 16 bits the record type.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.  Recovery takes the
+first record that does not end with its own offset as the end of the
+log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  The kind of page and page id is stored as a type code from
+PageRegistry.  See LogFile.print() for an example.
+
+<li> DELTA records are compact UPDATE records of a HeapPage.  They hold
+the slots that changed since the page was last logged, see
+HeapPageDelta.  A page is logged with a full UPDATE record the first time
+after a checkpoint, and with DELTA records after that.
+
+<li> CLR (compensation log) records are written when an update is
+undone.  They hold the offset of the next record of the transaction left
+to undo, and either UPDATE_RECORD and the page image that was installed,
+or DELTA_RECORD and the delta that was applied.  CLRs are redone but
+never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records on disk,
+and the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id,
+a long integer first record offset and a long integer last record offset
+for each active transaction; then an integer count of dirty pages, and
+for each a page id (type code, length and data) and the long integer
+offset of the first record that may be missing from the page on disk
+(its recLSN).
 
 </ul>
 
@@ -75,7 +113,11 @@ for each active transaction.
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
+    FileChannel header; // the checkpoint offset
+    final LogSegments segments; // the records
+    // reads records for rollback and recovery, under the LogFile lock
+    final LogSegments.Reader reader;
+    final DataInputStream in;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     // will not appear in log, but a constant meaning a transaction not finished
@@ -85,8 +127,16 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
+    // zeroes past the last record read as this type
+    static final int END_OF_LOG = 0;
+    static final long NO_PREV_RECORD = -1;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // version of the record format, in the upper half of record headers
+    static final int LOG_VERSION = 3;
+
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
@@ -95,6 +145,34 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // last record of each live transaction, the prevLSN of its next one
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    // pages with a full image in the log since the last checkpoint
+    HashSet<PageId> imagedPages = new HashSet<PageId>();
+
+    // appended records not written to the file yet
+    final LogBuffer logBuffer = new LogBuffer(LogBuffer.DEFAULT_SEGMENTS);
+    final DataOutputStream out = new DataOutputStream(logBuffer);
+
+    // group commit state, see forceUpTo()
+    private final Object flushLock = new Object();
+    private volatile long flushedLsn = 0; // written under flushLock
+    private boolean flushing = false; // guarded by flushLock
+    private int commitsWaiting = 0; // guarded by flushLock
+    private volatile boolean groupCommit =
+        Boolean.parseBoolean(System.getProperty("simpledb.GroupCommit", "true"));
+    private volatile long groupCommitMicros = Long.getLong("simpledb.GroupCommitMicros", 0);
+    private volatile int groupCommitRecords =
+        Integer.getInteger("simpledb.GroupCommitRecords", Integer.MAX_VALUE);
+    private final AtomicLong forces = new AtomicLong();
+    private volatile int redoThreads = Integer.getInteger("simpledb.RedoThreads", 1);
+
+    private volatile long nextRecordLsn = 0; // LSN of the next record
+    private volatile long checkpointLsn = 0; // LSN after the last checkpoint
+    private Checkpointer checkpointer; // guarded by checkpointerLock
+    private final Object checkpointerLock = new Object();
+    private final Object checkpointLock = new Object();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -104,14 +182,30 @@ public class LogFile {
         So we make this decision lazily: if someone calls recover(), then
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
+        If the simpledb.CheckpointMB or simpledb.CheckpointSeconds
+        properties are set, a {@link Checkpointer} is started with them.
+        The simpledb.LogSegmentMB property sets the size of new log
+        segments (default 16).
 
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        segments = new LogSegments(f,
+            Long.getLong("simpledb.LogSegmentMB", LogSegments.DEFAULT_SEGMENT_BYTES >> 20) << 20,
+            LogSegments.DEFAULT_SPARES);
+        reader = segments.reader(0);
+        in = new DataInputStream(reader);
         recoveryUndecided = true;
 
+        long checkpointBytes = Long.getLong("simpledb.CheckpointMB", 0) << 20;
+        long checkpointMillis = Long.getLong("simpledb.CheckpointSeconds", 0) * 1000;
+        if (checkpointBytes > 0 || checkpointMillis > 0) {
+            startCheckpointer(checkpointBytes, checkpointMillis);
+        }
+
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
                 // public void run() { shutdown(); }
@@ -130,11 +224,88 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            header.truncate(0);
+            writeCheckpointOffset(NO_CHECKPOINT_ID);
+            segments.reset();
+            resetBuffer(segments.start());
+        }
+    }
+
+    /** @return the offset of the last checkpoint, NO_CHECKPOINT_ID if
+        there is none */
+    private long readCheckpointOffset() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LONG_SIZE);
+        while (buf.hasRemaining()) {
+            if (header.read(buf, buf.position()) < 0) {
+                return NO_CHECKPOINT_ID;
+            }
+        }
+        return buf.getLong(0);
+    }
+
+    private void writeCheckpointOffset(long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LONG_SIZE);
+        buf.putLong(0, offset);
+        while (buf.hasRemaining()) {
+            header.write(buf, buf.position());
+        }
+    }
+
+    // start appending at the given offset
+    private void resetBuffer(long end) throws IOException {
+        logBuffer.setFile(segments, end);
+        currentOffset = end;
+        nextRecordLsn = logBuffer.appendedLsn();
+    }
+
+    // a record has been appended completely
+    private void recordAppended() throws IOException {
+        currentOffset = logBuffer.filePointer();
+        nextRecordLsn = logBuffer.appendedLsn();
+    }
+
+    // offset in the log of the record at the given LSN; records
+    // truncated away map to the first record kept
+    private long lsnToOffset(long lsn) {
+        long offset = lsn - (logBuffer.appendedLsn() - logBuffer.filePointer());
+        return Math.max(offset, segments.start());
+    }
+
+    /** @return LSN the next record will be appended at.  Always the
+        start of a record, unlike the LSN of the log buffer. */
+    public long getNextRecordLsn() {
+        return nextRecordLsn;
+    }
+
+    /** @return LSN right after the last checkpoint record */
+    public long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+
+    /** Starts a background {@link Checkpointer}, taking a checkpoint
+        every bytes of log or intervalMillis, whichever comes first.
+        @param bytes log bytes between checkpoints, 0 for no limit
+        @param intervalMillis time between checkpoints, 0 for no limit
+    */
+    public void startCheckpointer(long bytes, long intervalMillis) {
+        synchronized (checkpointerLock) {
+            if (checkpointer == null) {
+                checkpointer = new Checkpointer(this, bytes, intervalMillis);
+                checkpointer.start();
+            }
+        }
+    }
+
+    /** Stops the checkpointer, if one is running. */
+    public void stopCheckpointer() {
+        Checkpointer c;
+        synchronized (checkpointerLock) {
+            c = checkpointer;
+            checkpointer = null;
+        }
+        // join outside the lock, a checkpoint in progress needs the log
+        if (c != null) {
+            c.shutdown();
         }
     }
 
@@ -161,12 +332,12 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writeRecordStart(ABORT_RECORD, tid.getId());
+                out.writeLong(currentOffset);
+                recordAppended();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -176,17 +347,22 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            writeRecordStart(COMMIT_RECORD, tid.getId());
+            out.writeLong(currentOffset);
+            recordAppended();
+            end = logBuffer.appendedLsn();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        // outside the lock, so other commits can join the same force
+        forceUpTo(end, true);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -195,107 +371,172 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the record, to be kept as the page LSN
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
+        throws IOException  {
+        return logWrite(tid, before, after, null);
+    }
+
+    /** Write an UPDATE record for the specified tid and page, or a DELTA
+        record if the page already has a full image in the log since the
+        last checkpoint and the data it was last logged with is known.
+        @param tid The transaction performing the write
+        @param before The before image of the page, or null to get it
+        from after.getBeforeImage() only if a full record is written
+        @param after The after image of the page
+        @param logged The data of the page as of its last log record, or
+        null to log full images
+
+        @return the LSN of the record, to be kept as the page LSN
+    */
+    public  synchronized long logWrite(TransactionId tid, Page before,
+                                       Page after, byte[] logged)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        if (logged != null && after instanceof HeapPage
+            && imagedPages.contains(after.getId())) {
+            return logDelta(tid, HeapPageDelta.diff((HeapPage)after, logged, after.getPageData()));
+        }
+        imagedPages.add(after.getId());
+        if (before == null) {
+            before = after.getBeforeImage();
+        }
+
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        long lsn = logBuffer.appendedLsn();
         /* update record conists of
 
-           record type
+           record header
            transaction id
+           previous record of the transaction
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long start = currentOffset;
+        writeRecordStart(UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(start);
+        recordAppended();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    private long logDelta(TransactionId tid, HeapPageDelta delta)
+        throws IOException {
+        Debug.log("DELTA, offset = " + currentOffset);
+        preAppend();
+        long lsn = logBuffer.appendedLsn();
+        /* delta record consists of
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+           record header
+           transaction id
+           previous record of the transaction
+           changed slots (see HeapPageDelta.write)
+           start offset
+        */
+        long start = currentOffset;
+        writeRecordStart(DELTA_RECORD, tid.getId());
+        delta.write(out);
+        out.writeLong(start);
+        recordAppended();
+        return lsn;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    // appends the start of a record: header, transaction id and the
+    // offset of the transaction's previous record (its prevLSN)
+    private void writeRecordStart(int type, long tid) throws IOException {
+        Long prev = null;
+        if (type != CHECKPOINT_RECORD) {
+            prev = tidToLastLogRecord.put(tid, currentOffset);
+        }
+        out.writeInt(recordHeader(type));
+        out.writeLong(tid);
+        out.writeLong(prev == null ? NO_PREV_RECORD : prev);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** @return the header of a record of the given type */
+    static int recordHeader(int type) {
+        return (LOG_VERSION << 16) | type;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** Read a record header
+        @return the record type, or END_OF_LOG
+        @throws IOException if the record has another format version
+    */
+    static int readRecordType(DataInput raf) throws IOException {
+        int header = raf.readInt();
+        if (header == 0) {
+            return END_OF_LOG;
         }
+        int version = header >>> 16;
+        if (version != LOG_VERSION) {
+            throw new IOException("unsupported log record version " + version);
+        }
+        return header & 0xffff;
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        PageId pid = p.getId();
+
+        //page data is:
+        // page type code (see PageRegistry)
+        // id type code
+        // id length
+        // id data
+        // page data length
+        // page data
+
+        raf.writeByte(PageRegistry.pageCode(p));
+        writePageId(raf, pid);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput raf) throws IOException {
+        int pageCode = raf.readUnsignedByte();
+        PageId pid = readPageId(raf);
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData); //read before image
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        return PageRegistry.newPage(pageCode, pid, pageData);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Skip over page data without building the page; recovery only
+        needs the pages it redoes or undoes
+        @return the id of the page
+    */
+    PageId skipPageData(DataInput raf) throws IOException {
+        raf.skipBytes(1);
+        PageId pid = readPageId(raf);
+        raf.skipBytes(raf.readInt());
+        return pid;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    // page id is: id type code, id length, id data
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        raf.writeByte(PageRegistry.idCode(pid));
+        raf.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            raf.writeInt(pageInfo[i]);
         }
-        return newPage;
+    }
 
+    PageId readPageId(DataInput raf) throws IOException {
+        int idCode = raf.readUnsignedByte();
+        int idArgs[] = new int[raf.readInt()];
+        for (int i = 0; i < idArgs.length; i++) {
+            idArgs[i] = raf.readInt();
+        }
+        return PageRegistry.newPageId(idCode, idArgs);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -310,150 +551,125 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        writeRecordStart(BEGIN_RECORD, tid.getId());
+        out.writeLong(currentOffset);
+        recordAppended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Take a fuzzy checkpoint: write the active transactions and the
+        dirty page table of the buffer pool to the log.  Neither pages
+        are flushed nor is the buffer pool locked, so transactions go on
+        while the checkpoint is taken; dirty pages are written back at
+        commit or by the page cleaner, and recovery redoes from the
+        smallest recLSN in the table.  The free space maps of the heap
+        files are saved afterwards. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        // one checkpoint at a time, but appends go on while it is forced
+        synchronized (checkpointLock) {
+            long startCpOffset;
+            long cpEnd;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                Map<PageId,Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                startCpOffset = currentOffset;
+                writeRecordStart(CHECKPOINT_RECORD, NO_CHECKPOINT_ID); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToLastLogRecord.get(key));
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //write dirty page table
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                    writePageId(out, e.getKey());
+                    out.writeLong(lsnToOffset(e.getValue()));
+                }
+                out.writeLong(currentOffset);
+                recordAppended();
+                imagedPages.clear();
+                cpEnd = nextRecordLsn;
+            }
+
+            // forced together with concurrent commits, the log is only
+            // truncated by checkpoints so the offset stays valid
+            forceUpTo(cpEnd, false);
+
+            //once the CP is on disk, make sure the CP location at
+            // the beginning of the log file is updated
+            synchronized (this) {
+                writeCheckpointOffset(startCpOffset);
+                // before truncation releases what the last one needed
+                header.force(false);
+                checkpointLsn = cpEnd;
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
 
-        logTruncate();
+            logTruncate();
+            Database.getCatalog().saveFreeSpaceMaps();
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Segments that only hold records before the
+        checkpoint, the first record of every active transaction and the
+        recLSN of every dirty page are released to be recycled, nothing
+        is copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = readCheckpointOffset();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
+        logBuffer.drain();
+        reader.seek(cpLoc);
+        int cpType = readRecordType(in);
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+        in.readLong();
+
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+        int numOutstanding = in.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        // redo may start at the recLSN of a dirty page
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            long recLsn = in.readLong();
+            if (recLsn < minLogRecord) {
+                minLogRecord = recLsn;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        segments.release(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -462,309 +678,441 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        Each undone update is logged with a compensation log record
+        (CLR), so that recovery repeating history does not reinstall it.
+        Only the records of tid are read, following their prevLSN chain
+        from the last one, so the cost does not grow with the log.
+
+        Changes of tid still only in the buffer pool are logged first, and
+        updates are undone on the pages as the buffer pool has them: with
+        a page cleaner running, the disk may miss updates of transactions
+        that committed since.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
+                Database.getBufferPool().logPages(tid);
                 preAppend();
                 // some code goes here
-                
-                // seek to transaction tid beginning offset
-                long start = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(start);
-                
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-
-                        switch (type) {
-                        case ABORT_RECORD:
-                            break;
-                        case COMMIT_RECORD:
-                            break;
-                        case UPDATE_RECORD:
-                            Page before = readPageData(raf);
-                            Page after = readPageData(raf);
-                            if(record_tid == tid.getId()){
-                            	Database.getBufferPool().discardPage(before.getId());
-                            	DbFile df = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                            	df.writePage(before);
-                            }
-                            break;
-                        case BEGIN_RECORD:
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int numXactions = raf.readInt();
-                            while (numXactions-- > 0) {
-                                long xid = raf.readLong();
-                                long xoffset = raf.readLong();
-                            }
-                            break;
-                        }
-
-                        //all xactions finish with a pointer
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
-                    }
+                logBuffer.drain();
+
+                // walk the records of tid backwards through their prevLSN
+                // chain, newest first; other transactions' records are
+                // never read
+                Long last = tidToLastLogRecord.get(tid.getId());
+                long offset = last == null ? NO_PREV_RECORD : last;
+                HashMap<PageId,Page> pages = new HashMap<PageId,Page>();
+                while (offset != NO_PREV_RECORD) {
+                	offset = undoRecordAt(pages, offset, tid);
                 }
+                // the CLRs go to disk before the pages they describe
+                force();
+                writePages(pages);
             }
         }
     }
 
+    /** Undo the UPDATE or DELTA record at the given offset on the pages
+        being recovered, and log a CLR for it.  Records are read again
+        rather than kept in memory, the updates of a transaction may be
+        larger than the heap.  A CLR met on the way is not undone, the
+        undo continues with the record it points to.
+
+        @param rollingBack the transaction rolled back, or null in
+        recovery
+
+        @return the offset of the next record of the transaction to
+        undo, or NO_PREV_RECORD if the transaction is undone completely
+    */
+    private long undoRecordAt(HashMap<PageId,Page> pages, long offset,
+                              TransactionId rollingBack)
+        throws IOException {
+        reader.seek(offset);
+        int type = readRecordType(in);
+        long tid = in.readLong();
+        long prev = in.readLong();
+        switch (type) {
+        case UPDATE_RECORD:
+            Page before = readPageData(in);
+            pages.put(before.getId(), before);
+            logCompensation(tid, prev, before, null);
+            return prev;
+        case DELTA_RECORD:
+            HeapPageDelta delta = HeapPageDelta.read(in);
+            HeapPage page = (HeapPage)currentPage(pages, delta.getPageId(), rollingBack);
+            pages.put(delta.getPageId(), delta.undo(page));
+            logCompensation(tid, prev, null, delta.inverse());
+            return prev;
+        case CLR_RECORD:
+            return in.readLong();
+        default:
+            return prev;
+        }
+    }
+
+    /** Write a CLR: the page image or delta that undid an update, and
+        the next record of the transaction left to undo */
+    private void logCompensation(long tid, long undoNext, Page image,
+                                 HeapPageDelta delta)
+        throws IOException {
+        preAppend();
+        /* compensation record consists of
+
+           record header, transaction id, previous record
+           next record to undo
+           UPDATE_RECORD and the page image to install, or
+           DELTA_RECORD and the delta to redo
+           start offset
+        */
+        long start = currentOffset;
+        writeRecordStart(CLR_RECORD, tid);
+        out.writeLong(undoNext);
+        if (image != null) {
+            out.writeInt(UPDATE_RECORD);
+            writePageData(out, image);
+        } else {
+            out.writeInt(DELTA_RECORD);
+            delta.write(out);
+        }
+        out.writeLong(start);
+        recordAppended();
+    }
+
+    /** The page as recovered so far, or else as it is now: in the buffer
+        pool for a rollback, on disk after the redo pass of recovery */
+    private Page currentPage(HashMap<PageId,Page> pages, PageId pid,
+                             TransactionId rollingBack) throws IOException {
+        Page page = pages.get(pid);
+        if (page == null && rollingBack != null) {
+            page = bufferedPage(rollingBack, pid);
+        } else if (page == null) {
+            page = diskPage(pid);
+        }
+        return page;
+    }
+
+    // the page through the buffer pool, under the write lock tid took to
+    // change it; a page that left the buffer pool was written back first
+    private static Page bufferedPage(TransactionId tid, PageId pid)
+        throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        try {
+            Page page = bp.getPage(tid, pid, Permissions.READ_WRITE);
+            bp.unpinPage(tid, pid);
+            return page;
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("rollback of " + pid + " failed: " + e);
+        }
+    }
+
+    private static Page diskPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /** Write recovered pages to disk, dropping any cached copy */
+    private void writePages(HashMap<PageId,Page> pages) throws IOException {
+        for (Page page : pages.values()) {
+            Database.getBufferPool().discardPage(page.getId());
+            DbFile df = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            df.writePage(page);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            stopCheckpointer();
+            // a fuzzy checkpoint leaves dirty pages in the buffer pool,
+            // write them first so that start up has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Stops the checkpointer and the recycler of log segments and
+        closes the log, without writing anything; shutdown() writes a
+        checkpoint first.  Database.reset() uses it to drop a log as if
+        the system crashed. */
+    public void close() throws IOException {
+        stopCheckpointer();
+        synchronized (this) {
+            header.close();
+            segments.close();
+        }
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        Recovery follows ARIES and starts from the last checkpoint:
+        <ol>
+        <li> analysis scans from the checkpoint to the end of the log,
+        the first record that is zeroes or torn, and builds the table of unfinished transactions with their last
+        record, and the dirty page table with the first record (recLSN)
+        that may not be on disk for each page;
+        <li> redo repeats history from the smallest recLSN, installing
+        every update and CLR of every transaction, losers included; with
+        simpledb.RedoThreads set, the records are applied to the pages
+        by that many RedoWorkers, partitioned by page;
+        <li> undo rolls back the unfinished transactions, newest record
+        first across all of them, following the prevLSN chains and
+        logging a CLR for every undone update, and ends each of them
+        with an ABORT record.
+        </ol>
+        Pages keep no LSN on disk (the HeapPage format has no room for
+        one), so redo relies on the recLSNs instead of page LSNs; all
+        records install absolute contents, so redoing a record the page
+        already has is harmless.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                
-                // ȷlast checkpoint offsetͷʼ
-                raf.seek(0);
-                long cpOffset = raf.readLong();
-                HashMap<Long,Long> r_tidToFirstLogRecord = new HashMap<Long,Long>();
-                if(NO_CHECKPOINT_ID != cpOffset){
-                	raf.seek(cpOffset);
-                	
-                	int type = raf.readInt();
-                    long record_tid = raf.readLong();
-                    
-                	int numXactions = raf.readInt();
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        
-                        r_tidToFirstLogRecord.put(xid, xoffset);
+
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                long end = analysis(dirtyPages);
+                // records torn by the crash are overwritten from here
+                segments.truncate(end);
+                resetBuffer(end);
+
+                RedoWorkers workers = new RedoWorkers(redoThreads);
+                try {
+                    redo(dirtyPages, workers, end);
+                    HashMap<PageId,Page> pages = workers.drain();
+                    undo(pages);
+
+                    // the CLRs go to disk before the pages they describe
+                    force();
+                    for (Page page : pages.values()) {
+                        Database.getBufferPool().discardPage(page.getId());
+                        workers.submit(page.getId(), current -> {
+                            DbFile df = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+                            df.writePage(page);
+                            return page;
+                        });
                     }
-                    
-                    raf.readLong();
+                    workers.drain();
+                } finally {
+                    workers.close();
                 }
-                
-                // ûcheckpointͷʼȡtransaction start offset
-                // checkpointܵtransaction start offset
-                while (true) {
-                    try {
-                    	long offset = raf.getFilePointer();
-                    	
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-
-                        switch (type) {
-                        case ABORT_RECORD:
-                            break;
-                        case COMMIT_RECORD:
-                            break;
-                        case UPDATE_RECORD:
-                            Page before = readPageData(raf);
-                            Page after = readPageData(raf);
-                            break;
-                        case BEGIN_RECORD:
-                        	if(!r_tidToFirstLogRecord.containsKey(record_tid)){
-                        		r_tidToFirstLogRecord.put(record_tid, offset);
-                        	}
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int nXactions = raf.readInt();
-                            while (nXactions-- > 0) {
-                                long xid = raf.readLong();
-                                long xoffset = raf.readLong();
-                            }
-                            break;
-                        }
+            }
+         }
+    }
 
-                        //all xactions finish with a pointer
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
-                    }
+    /** Undo pass of recover(): rolls back the unfinished transactions
+        on the redone pages */
+    private void undo(HashMap<PageId,Page> pages) throws IOException {
+
+        // losers, newest record first: {offset, tid}
+        PriorityQueue<long[]> toUndo = new PriorityQueue<long[]>(11,
+            (a, b) -> Long.compare(b[0], a[0]));
+        for (Map.Entry<Long,Long> e : tidToLastLogRecord.entrySet()) {
+            toUndo.add(new long[] { e.getValue(), e.getKey() });
+        }
+        while (!toUndo.isEmpty()) {
+            long[] next = toUndo.poll();
+            long prev = undoRecordAt(pages, next[0], null);
+            if (prev != NO_PREV_RECORD) {
+                toUndo.add(new long[] { prev, next[1] });
+            } else {
+                writeRecordStart(ABORT_RECORD, next[1]);
+                out.writeLong(currentOffset);
+                recordAppended();
+                tidToFirstLogRecord.remove(next[1]);
+                tidToLastLogRecord.remove(next[1]);
+            }
+        }
+    }
+
+    /** Analysis pass of recover(): fills tidToFirstLogRecord and
+        tidToLastLogRecord with the unfinished transactions, and
+        dirtyPages with the recLSN of every page updated since the last
+        checkpoint
+        @return the offset of the end of the log
+    */
+    private long analysis(HashMap<PageId,Long> dirtyPages) throws IOException {
+        long cpOffset = readCheckpointOffset();
+        reader.seek(cpOffset == NO_CHECKPOINT_ID ? segments.start() : cpOffset);
+
+        while (true) {
+            long offset = reader.position();
+            int type;
+            long record_tid;
+            PageId pid = null;
+            long[] xactions = null; // of a checkpoint: tid, first, last
+            HashMap<PageId,Long> cpDirty = null;
+            try {
+                type = readRecordType(in);
+                if (type == END_OF_LOG) {
+                    return offset;
                 }
-                
-                // ȷr_tidToFirstLogRecordÿtidcommit,abortδ
-                HashMap<Long,Integer> r_tidStates = new HashMap<Long,Integer>();
-                Iterator<Entry<Long,Long>> it = r_tidToFirstLogRecord.entrySet().iterator();
-                while(it.hasNext()){
-                	Entry<Long,Long> en = it.next();
-                	
-                	// ĬΪδɣֻҵcommit,abortŸ
-                	// abortʵѾعcommit->redo,δ->undo
-                	r_tidStates.put(en.getKey(), INCOMPLETE_RECORD);
-                	
-                	raf.seek(en.getValue());
-                	
-                    while (true) {
-                        try {
-                            int type = raf.readInt();
-                            long record_tid = raf.readLong();
-
-                            switch (type) {
-                            case ABORT_RECORD:
-                            	if(record_tid == en.getKey()){
-                            		r_tidStates.put(en.getKey(), ABORT_RECORD);
-                            	}
-                                break;
-                            case COMMIT_RECORD:
-                            	if(record_tid == en.getKey()){
-                            		r_tidStates.put(en.getKey(), COMMIT_RECORD);
-                            	}
-                                break;
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                break;
-                            case BEGIN_RECORD:
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int nXactions = raf.readInt();
-                                while (nXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
-                                break;
-                            }
-
-                            //all xactions finish with a pointer
-                            raf.readLong();
-                        } catch (EOFException e) {
-                            break;
-                        }
+                record_tid = in.readLong();
+                in.readLong();
+
+                switch (type) {
+                case UPDATE_RECORD:
+                    pid = skipPageData(in);
+                    skipPageData(in);
+                    break;
+                case DELTA_RECORD:
+                    pid = HeapPageDelta.read(in).getPageId();
+                    break;
+                case CLR_RECORD:
+                    in.readLong();
+                    if (in.readInt() == UPDATE_RECORD) {
+                        pid = skipPageData(in);
+                    } else {
+                        pid = HeapPageDelta.read(in).getPageId();
                     }
-                }
-                
-               // redo
-                Iterator<Entry<Long,Integer>> itStates = r_tidStates.entrySet().iterator(); 
-                while(itStates.hasNext()){
-                	Entry<Long,Integer> en = itStates.next();
-                	if(en.getValue() != COMMIT_RECORD){
-                		continue;
-                	}
-                	
-                	raf.seek(r_tidToFirstLogRecord.get(en.getKey()));
-                	
-                    while (true) {
-                        try {
-                            int type = raf.readInt();
-                            long record_tid = raf.readLong();
-
-                            switch (type) {
-                            case ABORT_RECORD:
-                                break;
-                            case COMMIT_RECORD:
-                                break;
-                            case UPDATE_RECORD:
-                            	Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                if(record_tid == en.getKey()){
-                                	// before and after of the same page id, just discard either one
-                                	Database.getBufferPool().discardPage(before.getId());
-                                	DbFile df = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                                	df.writePage(after);
-                                }
-                                break;
-                            case BEGIN_RECORD:
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int nXactions = raf.readInt();
-                                while (nXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
-                                break;
-                            }
-
-                            //all xactions finish with a pointer
-                            raf.readLong();
-                        } catch (EOFException e) {
-                            break;
-                        }
+                    break;
+                case CHECKPOINT_RECORD:
+                    // active transactions at the time of the checkpoint
+                    xactions = new long[in.readInt() * 3];
+                    for (int i = 0; i < xactions.length; i++) {
+                        xactions[i] = in.readLong();
+                    }
+                    // and pages that may miss updates on disk
+                    int numDirty = in.readInt();
+                    cpDirty = new HashMap<PageId,Long>();
+                    while (numDirty-- > 0) {
+                        PageId dirty = readPageId(in);
+                        cpDirty.put(dirty, in.readLong());
                     }
+                    break;
                 }
-                
-               // undo
-                Iterator<Entry<Long,Integer>> un_committed = r_tidStates.entrySet().iterator(); 
-                while(un_committed.hasNext()){
-                	Entry<Long,Integer> en = un_committed.next();
-                	if(en.getValue() != INCOMPLETE_RECORD){
-                		continue;
-                	}
-                	
-                	raf.seek(r_tidToFirstLogRecord.get(en.getKey()));
-                	
-                    while (true) {
-                        try {
-                            int type = raf.readInt();
-                            long record_tid = raf.readLong();
-
-                            switch (type) {
-                            case ABORT_RECORD:
-                                break;
-                            case COMMIT_RECORD:
-                                break;
-                            case UPDATE_RECORD:
-                            	Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                if(record_tid == en.getKey()){
-                                	Database.getBufferPool().discardPage(before.getId());
-                                	DbFile df = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                                	df.writePage(before);
-                                }
-                                break;
-                            case BEGIN_RECORD:
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int nXactions = raf.readInt();
-                                while (nXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
-                                break;
-                            }
-
-                            //all xactions finish with a pointer
-                            raf.readLong();
-                        } catch (EOFException e) {
-                            break;
-                        }
+
+                //all xactions finish with a pointer; a record that does
+                // not was torn by the crash, and ends the log
+                if (in.readLong() != offset) {
+                    return offset;
+                }
+            } catch (IOException e) {
+                // the end of the segments, or a torn record
+                return offset;
+            }
+
+            switch (type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+                tidToFirstLogRecord.remove(record_tid);
+                tidToLastLogRecord.remove(record_tid);
+                break;
+            case BEGIN_RECORD:
+                tidToFirstLogRecord.put(record_tid, offset);
+                tidToLastLogRecord.put(record_tid, offset);
+                break;
+            case CHECKPOINT_RECORD:
+                for (int i = 0; i < xactions.length; i += 3) {
+                    tidToFirstLogRecord.put(xactions[i], xactions[i + 1]);
+                    tidToLastLogRecord.put(xactions[i], xactions[i + 2]);
+                }
+                for (Map.Entry<PageId,Long> e : cpDirty.entrySet()) {
+                    if (!dirtyPages.containsKey(e.getKey())) {
+                        dirtyPages.put(e.getKey(), e.getValue());
                     }
                 }
-                // ûcommitaborttransactionҪдabort¼
-                Iterator<Entry<Long,Integer>> un_finished = r_tidStates.entrySet().iterator();
-                while(un_finished.hasNext()){
-                	Entry<Long,Integer> en = un_finished.next();
-                	if(en.getValue() != INCOMPLETE_RECORD){
-                		continue;
-                	}
-                	
-                	currentOffset = raf.length();
-                	raf.seek(currentOffset);
-                	
-                	raf.writeInt(ABORT_RECORD);
-                    raf.writeLong(en.getKey());
-                    raf.writeLong(currentOffset);
-                    currentOffset = raf.getFilePointer();
-                    force();
+                break;
+            }
+            if (pid != null) {
+                tidToLastLogRecord.put(record_tid, offset);
+                if (!dirtyPages.containsKey(pid)) {
+                    dirtyPages.put(pid, offset);
                 }
             }
-         }
+        }
+    }
+
+    /** Redo pass of recover(): installs every update and CLR from the
+        smallest recLSN on, in log order for each page */
+    private void redo(HashMap<PageId,Long> dirtyPages,
+                      RedoWorkers workers, long end) throws IOException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        reader.seek(Collections.min(dirtyPages.values()));
+
+        while (reader.position() < end) {
+            long offset = reader.position();
+            int type = readRecordType(in);
+            in.readLong();
+            in.readLong();
+
+            switch (type) {
+            case UPDATE_RECORD:
+                skipPageData(in);
+                redoImage(dirtyPages, workers, offset);
+                break;
+            case DELTA_RECORD:
+                redoDelta(dirtyPages, workers, HeapPageDelta.read(in), offset);
+                break;
+            case CLR_RECORD:
+                in.readLong();
+                if (in.readInt() == UPDATE_RECORD) {
+                    redoImage(dirtyPages, workers, offset);
+                } else {
+                    redoDelta(dirtyPages, workers, HeapPageDelta.read(in), offset);
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                in.skipBytes(in.readInt() * 3 * LONG_SIZE);
+                int numDirty = in.readInt();
+                while (numDirty-- > 0) {
+                    readPageId(in);
+                    in.readLong();
+                }
+                break;
+            }
+
+            //all xactions finish with a pointer
+            in.readLong();
+        }
+    }
+
+    // reads a page image (as written by writePageData); the page is
+    // built by the worker
+    private void redoImage(HashMap<PageId,Long> dirtyPages,
+                           RedoWorkers workers, long offset)
+        throws IOException {
+        int pageCode = in.readUnsignedByte();
+        PageId pid = readPageId(in);
+        int length = in.readInt();
+        if (!needsRedo(dirtyPages, pid, offset)) {
+            in.skipBytes(length);
+            return;
+        }
+        byte[] pageData = new byte[length];
+        in.readFully(pageData);
+        workers.submit(pid, current -> PageRegistry.newPage(pageCode, pid, pageData));
+    }
+
+    private void redoDelta(HashMap<PageId,Long> dirtyPages,
+                           RedoWorkers workers,
+                           HeapPageDelta delta, long offset)
+        throws IOException {
+        PageId pid = delta.getPageId();
+        if (needsRedo(dirtyPages, pid, offset)) {
+            workers.submit(pid, current ->
+                delta.redo((HeapPage)(current != null ? current : diskPage(pid))));
+        }
+    }
+
+    // records before the recLSN of a page are on disk already
+    private static boolean needsRedo(HashMap<PageId,Long> dirtyPages,
+                                     PageId pid, long offset) {
+        Long recLsn = dirtyPages.get(pid);
+        return recLsn != null && offset >= recLsn;
     }
 
     /** Print out a human readable represenation of the log */
@@ -772,8 +1120,158 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force all records appended so far to disk. */
+    public void force() throws IOException {
+        forceUpTo(logBuffer.appendedLsn(), false);
+    }
+
+    /**
+     * Force the log to disk up to and including the record with the given
+     * LSN.  Returns right away if that record is on disk already.
+     *
+     * @param lsn the LSN of a record, as returned by logWrite()
+     */
+    public void force(long lsn) throws IOException {
+        // records are written whole, so any byte past lsn covers the record
+        forceUpTo(lsn + 1, false);
+    }
+
+    /** @return every log byte before this LSN is on disk */
+    public long getFlushedLsn() {
+        return flushedLsn;
+    }
+
+    /**
+     * Configure group commit.
+     *
+     * @param enabled false to let every force do its own FileChannel.force()
+     * @param windowMicros how long a committing leader waits for more
+     *        commits before it forces the log, 0 to force right away
+     * @param maxRecords a leader stops waiting once this many commits are
+     *        waiting for the force
+     */
+    public void setGroupCommit(boolean enabled, long windowMicros, int maxRecords) {
+        groupCommit = enabled;
+        groupCommitMicros = windowMicros;
+        groupCommitRecords = maxRecords;
+    }
+
+    /**
+     * Set the number of threads that apply records to pages during redo,
+     * see RedoWorkers.  1 applies them in the recovering thread.
+     */
+    public void setRedoThreads(int threads) {
+        redoThreads = threads;
+    }
+
+    /** @return number of FileChannel.force() calls on the log */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    // wait until every byte before LSN end is on disk
+    private void forceUpTo(long end, boolean commit) throws IOException {
+        if (flushedLsn >= end) {
+            return;
+        }
+        if (!groupCommit || Thread.holdsLock(this)) {
+            // never wait for a leader while holding the lock it needs to
+            // write the buffer
+            long target;
+            synchronized (this) {
+                target = logBuffer.drain();
+            }
+            forceChannel();
+            flushed(target);
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                if (commit) {
+                    commitsWaiting++;
+                    if (commitsWaiting >= groupCommitRecords) {
+                        flushLock.notifyAll(); // the batch is full
+                    }
+                }
+                try {
+                    while (flushedLsn < end && flushing) {
+                        interrupted |= waitFlush(0);
+                    }
+                    if (flushedLsn >= end) {
+                        return;
+                    }
+
+                    // this thread leads the next force
+                    flushing = true;
+                    if (commit && groupCommitMicros > 0) {
+                        long deadline = System.nanoTime() + groupCommitMicros * 1000;
+                        long left;
+                        while (commitsWaiting < groupCommitRecords
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            interrupted |= waitFlush(left);
+                        }
+                    }
+                } finally {
+                    if (commit) {
+                        commitsWaiting--;
+                    }
+                }
+            }
+
+            long target = -1;
+            try {
+                // records appended from now on wait for the next force
+                long drained;
+                synchronized (this) {
+                    drained = logBuffer.drain();
+                }
+                forceChannel();
+                target = drained;
+            } finally {
+                synchronized (flushLock) {
+                    flushing = false;
+                    if (target > flushedLsn) {
+                        flushedLsn = target;
+                    }
+                    flushLock.notifyAll();
+                }
+            }
+        } finally {
+            // only now, an interrupt closes the channel in the middle of a force
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void flushed(long target) {
+        synchronized (flushLock) {
+            if (target > flushedLsn) {
+                flushedLsn = target;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    // @return true if the thread was interrupted while waiting
+    private boolean waitFlush(long nanos) {
+        try {
+            if (nanos > 0) {
+                flushLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+            } else {
+                flushLock.wait();
+            }
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private void forceChannel() throws IOException {
+        segments.force();
+        forces.incrementAndGet();
     }
 
 }
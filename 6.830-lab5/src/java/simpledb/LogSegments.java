@@ -0,0 +1,531 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in fixed-size
+ * segment files instead of one file that grows forever. Offsets of records
+ * are positions in the sequence of all segments; segment files are named
+ * after the offset of their first byte (e.g. log.0000000001000000), so an
+ * offset never changes while the record is kept.
+ * <p>
+ * Segments are created at their full size and filled with zeroes ahead of
+ * the writes, so appending never changes the size of a file and a force
+ * only has to write data. Zeroes past the end of the log also mark where
+ * the log ends. Segments that only hold records before the oldest record
+ * still needed are released: a background thread zeroes them and renames
+ * them to become the next segments, or deletes them if enough are ready.
+ * The log thus takes no more disk space than the records it must keep,
+ * plus a few spare segments.
+ * <p>
+ * Written through a {@link LogBuffer}; thread safe.
+ */
+public class LogSegments implements LogBuffer.Sink {
+
+	/** Default size of a segment file. */
+	public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+	/** Default number of zeroed segments kept ahead of the writes. */
+	public static final int DEFAULT_SPARES = 2;
+
+	private static final int ZERO_BYTES = 64 * 1024;
+
+	private static class Segment {
+		final long start;
+		final long size;
+		final File file;
+		final FileChannel channel;
+		volatile boolean released;
+
+		Segment(long start, long size, File file) throws IOException {
+			this.start = start;
+			this.size = size;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		long end() {
+			return start + size;
+		}
+	}
+
+	private final File base;
+	private final long segmentBytes;
+	private final int spares;
+
+	// segments by start offset, guarded by this
+	private final TreeMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+	// segments written since the last force, guarded by this
+	private final Set<Segment> unforced = new HashSet<Segment>();
+	// released segments to recycle, guarded by this
+	private final List<Segment> released = new ArrayList<Segment>();
+	private long writeEnd; // offset past the last written byte, guarded by this
+	private Thread recycler; // guarded by this
+	private boolean closed; // guarded by this
+
+	/**
+	 * Opens the segments of a log, creating none yet.
+	 *
+	 * @param base the log file; segments are files next to it
+	 * @param segmentBytes size of new segments
+	 * @param spares number of zeroed segments to keep ahead of the writes
+	 */
+	public LogSegments(File base, long segmentBytes, int spares) throws IOException {
+		this.base = base.getAbsoluteFile();
+		this.segmentBytes = segmentBytes;
+		this.spares = spares;
+		File[] files = this.base.getParentFile().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				long start = startOf(f);
+				if (start >= 0) {
+					segments.put(start, new Segment(start, f.length(), f));
+				}
+			}
+		}
+	}
+
+	// start offset of a segment file of this log, or -1
+	private long startOf(File f) {
+		String prefix = base.getName() + ".";
+		String name = f.getName();
+		if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length()), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File fileOf(long start) {
+		return new File(base.getParentFile(), String.format("%s.%016x", base.getName(), start));
+	}
+
+	/** @return offset of the first byte kept in the segments */
+	public synchronized long start() {
+		return segments.isEmpty() ? 0 : segments.firstKey();
+	}
+
+	/** @return offset past the last segment */
+	public synchronized long end() {
+		return segments.isEmpty() ? 0 : segments.lastEntry().getValue().end();
+	}
+
+	/** @return number of segment files */
+	public synchronized int size() {
+		return segments.size();
+	}
+
+	/**
+	 * Drops every segment; the log starts over, empty, at offset 0.
+	 */
+	public synchronized void reset() throws IOException {
+		for (Segment s : segments.values()) {
+			s.released = true;
+			s.channel.close();
+			s.file.delete();
+		}
+		segments.clear();
+		unforced.clear();
+		writeEnd = 0;
+		forceDirectory();
+	}
+
+	/**
+	 * Makes the log end at the given offset: later bytes are zeroed, and
+	 * segments after the one holding the offset are deleted. Used after
+	 * recovery, so that nothing written before a crash is taken for a
+	 * record behind the records appended from now on.
+	 */
+	public synchronized void truncate(long end) throws IOException {
+		Map.Entry<Long,Segment> last = segments.floorEntry(end);
+		for (Segment s : new ArrayList<Segment>(segments.tailMap(end, true).values())) {
+			if (last == null || s != last.getValue()) {
+				segments.remove(s.start);
+				unforced.remove(s);
+				s.released = true;
+				s.channel.close();
+				s.file.delete();
+			}
+		}
+		writeEnd = end;
+		if (last != null && end < last.getValue().end()) {
+			Segment s = last.getValue();
+			zero(s.channel, end - s.start, s.size);
+			s.channel.force(false);
+		}
+		forceDirectory();
+	}
+
+	/**
+	 * Writes bytes at an offset of the log, into as many segments as they
+	 * span. Does not force them.
+	 *
+	 * @return the number of bytes written, all of them
+	 */
+	public int write(ByteBuffer src, long position) throws IOException {
+		int written = 0;
+		while (src.hasRemaining()) {
+			Segment s = segmentFor(position);
+			int n = (int) Math.min(src.remaining(), s.end() - position);
+			ByteBuffer part = src.duplicate();
+			part.limit(src.position() + n);
+			long filePosition = position - s.start;
+			while (part.hasRemaining()) {
+				filePosition += s.channel.write(part, filePosition);
+			}
+			src.position(src.position() + n);
+			position += n;
+			written += n;
+			synchronized (this) {
+				unforced.add(s);
+				writeEnd = Math.max(writeEnd, position);
+			}
+		}
+		return written;
+	}
+
+	// the segment holding offset, created if the writes got ahead of the
+	// recycler
+	private synchronized Segment segmentFor(long offset) throws IOException {
+		Map.Entry<Long,Segment> e = segments.floorEntry(offset);
+		Segment s;
+		if (e != null && offset < e.getValue().end()) {
+			s = e.getValue();
+		} else {
+			// sparse, reads as zeroes just the same
+			long start = nextStart();
+			do {
+				File f = fileOf(start);
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				try {
+					raf.setLength(segmentBytes);
+					raf.getChannel().force(true);
+				} finally {
+					raf.close();
+				}
+				forceDirectory();
+				s = new Segment(start, segmentBytes, f);
+				segments.put(start, s);
+				start = s.end();
+			} while (start <= offset);
+		}
+		if (newSpareNeeded()) {
+			startRecycler();
+			notifyAll();
+		}
+		return s;
+	}
+
+	// start of the segment after the last one
+	private long nextStart() {
+		return segments.isEmpty() ? 0 : segments.lastEntry().getValue().end();
+	}
+
+	// the segment being written, or null
+	private Segment current() {
+		Map.Entry<Long,Segment> e = segments.floorEntry(Math.max(writeEnd - 1, 0));
+		return e == null ? null : e.getValue();
+	}
+
+	// are fewer than spares segments ready past the one being written?
+	private boolean sparesNeeded() {
+		Segment current = current();
+		return current != null && segments.tailMap(current.end(), true).size() < spares;
+	}
+
+	// should the recycler zero a new file? Only once the segment being
+	// written is half full, small logs never get spares
+	private boolean newSpareNeeded() {
+		Segment current = current();
+		return sparesNeeded() && writeEnd - current.start >= current.size / 2;
+	}
+
+	/**
+	 * Forces every segment written since the last force.
+	 */
+	public void force() throws IOException {
+		Segment[] toForce;
+		synchronized (this) {
+			toForce = unforced.toArray(new Segment[unforced.size()]);
+			unforced.clear();
+		}
+		for (Segment s : toForce) {
+			try {
+				// the size never changes, only the data needs to go to disk
+				s.channel.force(false);
+			} catch (ClosedChannelException e) {
+				// released meanwhile, nothing in it is needed
+				if (!s.released) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases the segments that end at or before offset. They are
+	 * recycled in the background.
+	 *
+	 * @param offset the oldest record still needed
+	 */
+	public synchronized void release(long offset) {
+		while (segments.size() > 1) {
+			Segment first = segments.firstEntry().getValue();
+			if (first.end() > offset || first.end() > writeEnd) {
+				break;
+			}
+			segments.remove(first.start);
+			unforced.remove(first);
+			first.released = true;
+			released.add(first);
+		}
+		if (!released.isEmpty()) {
+			startRecycler();
+			notifyAll();
+		}
+	}
+
+	private void startRecycler() {
+		if (recycler == null && !closed) {
+			recycler = new Thread("LogRecycler") {
+				public void run() {
+					recycle();
+				}
+			};
+			recycler.setDaemon(true);
+			recycler.start();
+		}
+	}
+
+	// recycler thread: zeroes released segments, or new files while too
+	// few spares are ready, and adds them as the next segments; deletes
+	// released segments once enough are ready
+	private void recycle() {
+		File spare = new File(base.getParentFile(), base.getName() + ".spare");
+		while (true) {
+			Segment old = null;
+			List<Segment> toDelete = new ArrayList<Segment>();
+			boolean prepare;
+			synchronized (this) {
+				while (!closed && released.isEmpty() && !newSpareNeeded()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed) {
+					return;
+				}
+				if (!released.isEmpty()) {
+					if (sparesNeeded() && released.get(0).size == segmentBytes) {
+						old = released.remove(0);
+					} else {
+						toDelete.addAll(released);
+						released.clear();
+					}
+				}
+				prepare = old != null || newSpareNeeded();
+			}
+			try {
+				for (Segment s : toDelete) {
+					s.channel.close();
+					s.file.delete();
+				}
+				if (!prepare) {
+					continue;
+				}
+				if (old != null) {
+					old.channel.close();
+					if (!old.file.renameTo(spare)) {
+						throw new IOException("can not rename " + old.file);
+					}
+				}
+				// zeroes are written outside the lock, appends go on
+				RandomAccessFile raf = new RandomAccessFile(spare, "rw");
+				try {
+					zero(raf.getChannel(), 0, segmentBytes);
+					raf.setLength(segmentBytes);
+					raf.getChannel().force(true);
+				} finally {
+					raf.close();
+				}
+				synchronized (this) {
+					long start = nextStart();
+					File f = fileOf(start);
+					if (closed || !spare.renameTo(f)) {
+						spare.delete();
+						continue;
+					}
+					forceDirectory();
+					segments.put(start, new Segment(start, segmentBytes, f));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void zero(FileChannel channel, long from, long to) throws IOException {
+		ByteBuffer zeroes = ByteBuffer.allocateDirect(ZERO_BYTES);
+		while (from < to) {
+			zeroes.clear();
+			zeroes.limit((int) Math.min(ZERO_BYTES, to - from));
+			while (zeroes.hasRemaining()) {
+				from += channel.write(zeroes, from);
+			}
+		}
+	}
+
+	// new and renamed files must survive a crash too
+	private void forceDirectory() {
+		try {
+			FileChannel dir = FileChannel.open(base.getParentFile().toPath(), StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			// not every platform can force a directory
+		}
+	}
+
+	/**
+	 * Stops the recycler and closes the segment files.
+	 */
+	public void close() throws IOException {
+		Thread r;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			r = recycler;
+		}
+		if (r != null) {
+			try {
+				r.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			for (Segment s : segments.values()) {
+				s.channel.close();
+			}
+			// nothing in them is needed
+			for (Segment s : released) {
+				s.channel.close();
+				s.file.delete();
+			}
+			released.clear();
+		}
+	}
+
+	/**
+	 * @param offset where to start reading
+	 * @return a reader of the log from offset on
+	 */
+	public Reader reader(long offset) {
+		Reader r = new Reader();
+		r.seek(offset);
+		return r;
+	}
+
+	/**
+	 * Reads the log through a buffer. Past the last segment it returns
+	 * end of file; past the end of the log within a segment it reads
+	 * zeroes. Not thread safe.
+	 */
+	public class Reader extends InputStream {
+		private final ByteBuffer buffer = ByteBuffer.allocate(ZERO_BYTES);
+		private long bufferStart;
+
+		/** @return offset of the next byte read */
+		public long position() {
+			return bufferStart + buffer.position();
+		}
+
+		/** Moves to offset; bytes buffered before are read again. */
+		public void seek(long offset) {
+			bufferStart = offset;
+			buffer.clear();
+			buffer.limit(0);
+		}
+
+		private boolean fill() throws IOException {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+			long offset = position();
+			Segment s;
+			synchronized (LogSegments.this) {
+				Map.Entry<Long,Segment> e = segments.floorEntry(offset);
+				if (e == null || offset >= e.getValue().end()) {
+					return false;
+				}
+				s = e.getValue();
+			}
+			bufferStart = offset;
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), s.end() - offset));
+			while (buffer.hasRemaining()) {
+				int n = s.channel.read(buffer, offset - s.start + buffer.position());
+				if (n < 0) {
+					// a sparse file shorter than its size
+					while (buffer.hasRemaining()) {
+						buffer.put((byte) 0);
+					}
+				}
+			}
+			buffer.flip();
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, n);
+			if (skipped <= buffer.remaining()) {
+				buffer.position(buffer.position() + (int) skipped);
+			} else {
+				seek(position() + skipped);
+			}
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Every page remembers the
+ * times of its last K references; the victim is the page whose K-th most
+ * recent reference lies furthest in the past. Pages referenced fewer than
+ * K times count as infinitely old, so a page touched once by a scan goes
+ * before a page that is used over and over, and among those pages the
+ * least recently used one goes first.
+ * <p>
+ * The history of evicted pages is kept for a while (bounded by the number of
+ * frames), so a hot page that was pushed out keeps its history when it is
+ * read back in.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+	/** K used by {@link #LruKPolicy(int)} */
+	public static final int DEFAULT_K = 2;
+
+	private final int k;
+	private final Map<PageId,long[]> resident;
+	private final LinkedHashMap<PageId,long[]> retained;
+	private long clock;
+
+	/**
+	 * Creates an LRU-2 policy.
+	 *
+	 * @param numPages the number of frames of the buffer pool
+	 */
+	public LruKPolicy(int numPages) {
+		this(DEFAULT_K, numPages);
+	}
+
+	/**
+	 * @param k number of references remembered per page
+	 * @param numPages the number of frames of the buffer pool, also the
+	 *            number of evicted pages whose history is retained
+	 */
+	public LruKPolicy(int k, final int numPages) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be positive: " + k);
+		}
+		this.k = k;
+		resident = new HashMap<>();
+		retained = new LinkedHashMap<PageId,long[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<PageId,long[]> eldest) {
+				return size() > numPages;
+			}
+		};
+		clock = 0;
+	}
+
+	public synchronized void pageAdded(PageId pid) {
+		long[] history = resident.get(pid);
+		if (history == null) {
+			history = retained.remove(pid);
+			if (history == null) {
+				// history[0] is the most recent reference, 0 means none
+				history = new long[k];
+			}
+			resident.put(pid, history);
+		}
+		reference(history);
+	}
+
+	public synchronized void pageAccessed(PageId pid) {
+		long[] history = resident.get(pid);
+		if (history == null) {
+			pageAdded(pid);
+		} else {
+			reference(history);
+		}
+	}
+
+	public synchronized void pageRemoved(PageId pid) {
+		long[] history = resident.remove(pid);
+		if (history != null) {
+			retained.put(pid, history);
+		}
+	}
+
+	public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+		PageId victim = null;
+		long victimKth = Long.MAX_VALUE;
+		long victimLast = Long.MAX_VALUE;
+
+		for (Map.Entry<PageId,long[]> en : resident.entrySet()) {
+			long[] history = en.getValue();
+			long kth = history[k - 1];
+			long last = history[0];
+			// smaller K-th reference time means larger backward K-distance,
+			// ties (including pages with fewer than K references) go to LRU
+			if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+				if (evictable.test(en.getKey())) {
+					victim = en.getKey();
+					victimKth = kth;
+					victimLast = last;
+				}
+			}
+		}
+
+		return victim;
+	}
+
+	private void reference(long[] history) {
+		System.arraycopy(history, 0, history, 1, k - 1);
+		history[0] = ++clock;
+	}
+}
@@ -56,4 +56,15 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that describes a change to this
+     * page (the pageLSN), or 0 if no change was logged since it was read.
+     * The page must not be written to disk before the log is forced up to
+     * this LSN.
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last log record describing a change to this page. */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageCleaner is the background writer of a {@link BufferPool}. Every
+ * interval it writes back up to a batch of dirty pages whose updates are
+ * already in the log, so that eviction finds clean frames and getPage
+ * rarely has to wait for a write.
+ * <p>
+ * The cleaner is off by default. It is started with
+ * {@link BufferPool#startPageCleaner} or the simpledb.PageCleaner system
+ * property, which gives the interval in milliseconds
+ * (e.g. -Dsimpledb.PageCleaner=10).
+ *
+ * @see BufferPool#writeBackPages
+ */
+public class PageCleaner extends Thread {
+
+	/** Default number of pages written per round. */
+	public static final int DEFAULT_BATCH = 16;
+
+	private final BufferPool bufferPool;
+	private final long intervalMillis;
+	private final int batch;
+	private volatile boolean running = true;
+	private final Object pause = new Object();
+
+	/**
+	 * @param bufferPool the buffer pool to clean
+	 * @param intervalMillis pause between two rounds
+	 * @param batch maximum number of pages written per round
+	 */
+	public PageCleaner(BufferPool bufferPool, long intervalMillis, int batch) {
+		super("PageCleaner");
+		this.bufferPool = bufferPool;
+		this.intervalMillis = intervalMillis;
+		this.batch = batch;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		int written = 0;
+		while (true) {
+			// keep going without a pause while there is a backlog
+			synchronized (pause) {
+				if (!running) {
+					return;
+				}
+				if (written < batch) {
+					try {
+						pause.wait(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+
+			written = 0;
+			try {
+				written = bufferPool.writeBackPages(batch);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the cleaner and waits for the current round to finish. The
+	 * thread is not interrupted, an interrupt would close the log's
+	 * FileChannel in the middle of a force.
+	 */
+	public void shutdown() {
+		synchronized (pause) {
+			running = false;
+			pause.notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageRegistry gives every kind of page and page id that is written to the
+ * log a one byte type code, and keeps a factory per code that rebuilds the
+ * page or id when the log is read back. The {@link LogFile} writes the
+ * codes instead of class names and calls the factories directly instead of
+ * looking up constructors by reflection.
+ * <p>
+ * HeapPage and HeapPageId are registered by default. A new kind of page
+ * registers itself once, with a code that is not taken yet; codes are
+ * stored in the log, so they must not change between runs.
+ *
+ * @Threadsafe
+ */
+public class PageRegistry {
+
+	/** Rebuilds a page from its id and the bytes of {@link Page#getPageData}. */
+	public interface PageFactory {
+		Page newPage(PageId pid, byte[] data) throws IOException;
+	}
+
+	/** Rebuilds a page id from the ints of {@link PageId#serialize}. */
+	public interface PageIdFactory {
+		PageId newPageId(int[] data);
+	}
+
+	public static final int HEAP_PAGE = 1;
+	public static final int HEAP_PAGE_ID = 1;
+
+	private static final int MAX_CODE = 255;
+
+	private static final AtomicReferenceArray<PageFactory> pageFactories =
+			new AtomicReferenceArray<PageFactory>(MAX_CODE + 1);
+	private static final AtomicReferenceArray<PageIdFactory> idFactories =
+			new AtomicReferenceArray<PageIdFactory>(MAX_CODE + 1);
+	private static final ConcurrentHashMap<Class<?>, Integer> pageCodes =
+			new ConcurrentHashMap<Class<?>, Integer>();
+	private static final ConcurrentHashMap<Class<?>, Integer> idCodes =
+			new ConcurrentHashMap<Class<?>, Integer>();
+
+	static {
+		registerPage(HEAP_PAGE, HeapPage.class, (pid, data) -> HeapPage.wrap((HeapPageId) pid, data));
+		registerPageId(HEAP_PAGE_ID, HeapPageId.class, data -> new HeapPageId(data[0], data[1]));
+	}
+
+	/**
+	 * Registers a kind of page.
+	 *
+	 * @throws IllegalArgumentException if the code is out of range or taken
+	 *         by another class
+	 */
+	public static synchronized void registerPage(int code, Class<? extends Page> pageClass,
+			PageFactory factory) {
+		checkCode(code, pageClass, pageCodes);
+		pageFactories.set(code, factory);
+		pageCodes.put(pageClass, code);
+	}
+
+	/**
+	 * Registers a kind of page id.
+	 *
+	 * @throws IllegalArgumentException if the code is out of range or taken
+	 *         by another class
+	 */
+	public static synchronized void registerPageId(int code, Class<? extends PageId> idClass,
+			PageIdFactory factory) {
+		checkCode(code, idClass, idCodes);
+		idFactories.set(code, factory);
+		idCodes.put(idClass, code);
+	}
+
+	private static void checkCode(int code, Class<?> c, ConcurrentHashMap<Class<?>, Integer> codes) {
+		if (code <= 0 || code > MAX_CODE) {
+			throw new IllegalArgumentException("type code " + code + " out of range");
+		}
+		for (Map.Entry<Class<?>, Integer> e : codes.entrySet()) {
+			if (e.getValue() == code && e.getKey() != c) {
+				throw new IllegalArgumentException("type code " + code + " is taken by " + e.getKey().getName());
+			}
+		}
+	}
+
+	/** @return the type code of the page */
+	public static int pageCode(Page page) throws IOException {
+		Integer code = pageCodes.get(page.getClass());
+		if (code == null) {
+			throw new IOException("no type code registered for " + page.getClass().getName());
+		}
+		return code;
+	}
+
+	/** @return the type code of the page id */
+	public static int idCode(PageId pid) throws IOException {
+		Integer code = idCodes.get(pid.getClass());
+		if (code == null) {
+			throw new IOException("no type code registered for " + pid.getClass().getName());
+		}
+		return code;
+	}
+
+	/** Rebuilds a page of the kind registered under code. */
+	public static Page newPage(int code, PageId pid, byte[] data) throws IOException {
+		PageFactory factory = code > 0 && code <= MAX_CODE ? pageFactories.get(code) : null;
+		if (factory == null) {
+			throw new IOException("unknown page type code " + code);
+		}
+		return factory.newPage(pid, data);
+	}
+
+	/** Rebuilds a page id of the kind registered under code. */
+	public static PageId newPageId(int code, int[] data) throws IOException {
+		PageIdFactory factory = code > 0 && code <= MAX_CODE ? idFactories.get(code) : null;
+		if (factory == null) {
+			throw new IOException("unknown page id type code " + code);
+		}
+		return factory.newPageId(data);
+	}
+}
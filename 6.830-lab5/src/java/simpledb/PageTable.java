@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageTable maps the pages resident in the {@link BufferPool} to their
+ * {@link BufferFrame}s.
+ * <p>
+ * Pages are keyed by a long made of the table id and the page number, so two
+ * different pages never share an entry the way two PageIds with the same
+ * hashCode() could. The table is an open addressing hash table with linear
+ * probing over primitive long keys; removals shift the following entries
+ * back, so there are no tombstones.
+ *
+ * @Threadsafe
+ */
+public class PageTable {
+
+	private long[] keys;
+	private BufferFrame[] frames;
+	private int size;
+
+	/**
+	 * @param numPages expected number of resident pages
+	 */
+	public PageTable(int numPages) {
+		int capacity = 16;
+		while (capacity < numPages * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		frames = new BufferFrame[capacity];
+		size = 0;
+	}
+
+	/** @return the page table key of pid, made of table id and page number */
+	public static long key(PageId pid) {
+		return ((long) pid.getTableId() << 32) | (pid.pageNumber() & 0xffffffffL);
+	}
+
+	private static int hash(long key) {
+		// murmur3 finalizer, table ids are file name hashes, page numbers are dense
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (frames[i] != null && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/** @return the frame holding page pid, or null if it is not resident */
+	public synchronized BufferFrame get(PageId pid) {
+		return frames[slotOf(key(pid))];
+	}
+
+	/**
+	 * Adds frame unless its page already has a frame.
+	 *
+	 * @return the frame already holding the page, or null if frame was added
+	 */
+	public synchronized BufferFrame putIfAbsent(BufferFrame frame) {
+		int i = slotOf(frame.key());
+		if (frames[i] != null) {
+			return frames[i];
+		}
+
+		keys[i] = frame.key();
+		frames[i] = frame;
+		if (++size * 2 > keys.length) {
+			resize();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the frame of page pid.
+	 *
+	 * @return the removed frame, or null if the page was not resident
+	 */
+	public synchronized BufferFrame remove(PageId pid) {
+		int mask = keys.length - 1;
+		int i = slotOf(key(pid));
+		BufferFrame removed = frames[i];
+		if (removed == null) {
+			return null;
+		}
+
+		// shift back entries of the probe sequence so lookups never stop early
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (frames[j] == null) {
+				break;
+			}
+			int home = hash(keys[j]) & mask;
+			// move j into the hole unless its home lies cyclically in (hole, j]
+			boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+			if (!stays) {
+				keys[hole] = keys[j];
+				frames[hole] = frames[j];
+				hole = j;
+			}
+		}
+		frames[hole] = null;
+		size--;
+		return removed;
+	}
+
+	/** @return number of resident pages */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** @return a snapshot of all frames */
+	public synchronized List<BufferFrame> frames() {
+		List<BufferFrame> all = new ArrayList<>(size);
+		for (BufferFrame f : frames) {
+			if (f != null) {
+				all.add(f);
+			}
+		}
+		return all;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		BufferFrame[] oldFrames = frames;
+		keys = new long[oldKeys.length * 2];
+		frames = new BufferFrame[oldFrames.length * 2];
+		for (int i = 0; i < oldFrames.length; i++) {
+			if (oldFrames[i] != null) {
+				int j = slotOf(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				frames[j] = oldFrames[i];
+			}
+		}
+	}
+}
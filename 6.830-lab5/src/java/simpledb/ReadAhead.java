@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ReadAhead prefetches the pages ahead of a sequential scan of a heap file,
+ * so that the scan finds the next page already read instead of waiting
+ * for the disk once per page.
+ * <p>
+ * The scan reports every page it gets with {@link #accessed}. Once it has
+ * got two consecutive pages, the next window pages are read on the I/O
+ * threads of the BufferPool, and every further page of the scan moves the
+ * window one page on. The window starts at MIN_PAGES and doubles, up to
+ * the maximum given by the BufferPool, whenever the scan has to wait for a
+ * page still being read, so it grows as far as the scan consumes pages
+ * faster than a window of reads completes. A jump to a page out of order
+ * shrinks it back.
+ * <p>
+ * Pages are only read ahead if they are not resident, and without
+ * taking locks: the scan may stop before it gets to them, and a lock held
+ * until the end of the transaction on a page the scan never read would
+ * hold writers up. The page read ahead is a copy of the disk, which
+ * {@link BufferPool#getPage} hands out after locking the page as usual,
+ * instead of reading it again; see {@link BufferPool#readAhead} for why
+ * the copy is still current then.
+ * <p>
+ * A ReadAhead belongs to a single scan and is not thread safe.
+ *
+ * @see BufferPool#newReadAhead
+ */
+public class ReadAhead {
+
+	/** Window of a scan that just started. */
+	public static final int MIN_PAGES = 2;
+
+	/** Largest window handed out by the BufferPool. */
+	public static final int MAX_PAGES = 32;
+
+	/** A page read or being read ahead, kept by the BufferPool until used. */
+	static final class Prefetch {
+		final ReadAhead owner;
+		final FutureTask<Page> read;
+
+		Prefetch(ReadAhead owner, FutureTask<Page> read) {
+			this.owner = owner;
+			this.read = read;
+		}
+
+		/**
+		 * Waits for the read to finish.
+		 *
+		 * @return the page, or null if it could not be read
+		 */
+		Page take() {
+			if (!read.isDone()) {
+				owner.waited();
+			}
+			try {
+				return read.get();
+			} catch (ExecutionException e) {
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	private final BufferPool pool;
+	final TransactionId tid;
+	private final int tableId;
+	private final int tablePages;
+	private final int maxPages;
+
+	// may be grown by whichever thread takes a page of this scan
+	private volatile int window = MIN_PAGES;
+	private int lastPage = -2;
+	private boolean sequential;
+	// first page past those read ahead so far
+	private int next;
+	// pages read ahead and not passed by the scan yet
+	private final ArrayDeque<PageId> pending = new ArrayDeque<PageId>();
+
+	ReadAhead(BufferPool pool, TransactionId tid, int tableId, int tablePages, int maxPages) {
+		this.pool = pool;
+		this.tid = tid;
+		this.tableId = tableId;
+		this.tablePages = tablePages;
+		this.maxPages = maxPages;
+	}
+
+	/** @return number of pages currently read ahead of the scan */
+	public int window() {
+		return window;
+	}
+
+	/**
+	 * Tells the read-ahead that the scan got page pid, and reads ahead
+	 * once the scan turns out to be sequential.
+	 */
+	public void accessed(PageId pid) {
+		int page = pid.pageNumber();
+		sequential = page == lastPage + 1;
+		if (!sequential) {
+			window = MIN_PAGES;
+			next = page + 1;
+		}
+		lastPage = page;
+		while (!pending.isEmpty() && pending.peek().pageNumber() <= page) {
+			pending.poll();
+		}
+		if (!sequential) {
+			return;
+		}
+
+		int end = Math.min(tablePages, page + 1 + window);
+		for (int p = Math.max(next, page + 1); p < end; p++) {
+			PageId ahead = new HeapPageId(tableId, p);
+			if (pool.readAhead(this, ahead)) {
+				pending.add(ahead);
+			}
+		}
+		next = Math.max(next, end);
+	}
+
+	/** Drops the pages read ahead that the scan did not get. */
+	public void close() {
+		for (PageId pid : pending) {
+			pool.dropReadAhead(this, pid);
+		}
+		pending.clear();
+	}
+
+	private void waited() {
+		window = Math.min(maxPages, window * 2);
+	}
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * RedoWorkers apply the records replayed by {@link LogFile#recover} to
+ * pages. A record goes to the worker chosen by the hash of its page id,
+ * so the records of one page are applied by one thread in log order,
+ * while different pages are rebuilt concurrently. The log itself is read
+ * by the calling thread only.
+ * <p>
+ * The number of workers is set with the simpledb.RedoThreads property or
+ * {@link LogFile#setRedoThreads}. With one worker, the default, records
+ * are applied by the calling thread as before.
+ */
+public class RedoWorkers {
+
+	/** Rebuilds a page from its recovered state. */
+	public interface Task {
+		/**
+		 * @param current the page as recovered so far, or null if no
+		 *        record of it was applied yet
+		 * @return the page with the record applied
+		 */
+		Page apply(Page current) throws IOException;
+	}
+
+	// records queued per worker before the reader waits
+	private static final int QUEUE_SIZE = 1024;
+
+	private static class Item {
+		final PageId pid;
+		final Task task;
+		final CountDownLatch done;
+
+		Item(PageId pid, Task task, CountDownLatch done) {
+			this.pid = pid;
+			this.task = task;
+			this.done = done;
+		}
+	}
+
+	private class Worker extends Thread {
+		final HashMap<PageId,Page> pages = new HashMap<PageId,Page>();
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+
+		Worker(int i) {
+			super("RedoWorker-" + i);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Item item;
+				try {
+					item = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (item.task == null) {
+					// a barrier, or the end if it has no latch
+					if (item.done == null) {
+						return;
+					}
+					item.done.countDown();
+				} else if (failure == null) {
+					try {
+						pages.put(item.pid, item.task.apply(pages.get(item.pid)));
+					} catch (Throwable e) {
+						failure = e;
+					}
+				}
+			}
+		}
+	}
+
+	private final Worker[] workers;
+	private final HashMap<PageId,Page> pages; // of the calling thread, no workers
+	private volatile Throwable failure;
+
+	/**
+	 * @param threads number of workers; with one or less, tasks are
+	 *        applied by the calling thread
+	 */
+	public RedoWorkers(int threads) {
+		if (threads <= 1) {
+			workers = null;
+			pages = new HashMap<PageId,Page>();
+			return;
+		}
+		pages = null;
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Applies task to the page, after every task submitted for it before.
+	 */
+	public void submit(PageId pid, Task task) throws IOException {
+		if (workers == null) {
+			pages.put(pid, task.apply(pages.get(pid)));
+			return;
+		}
+		checkFailure();
+		put(workers[(pid.hashCode() & Integer.MAX_VALUE) % workers.length], new Item(pid, task, null));
+	}
+
+	/**
+	 * Waits for every task submitted so far.
+	 *
+	 * @return the pages as rebuilt by the tasks
+	 */
+	public HashMap<PageId,Page> drain() throws IOException {
+		if (workers == null) {
+			return new HashMap<PageId,Page>(pages);
+		}
+		CountDownLatch done = new CountDownLatch(workers.length);
+		for (Worker w : workers) {
+			put(w, new Item(null, null, done));
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		checkFailure();
+		// the workers are idle until the next submit
+		HashMap<PageId,Page> all = new HashMap<PageId,Page>();
+		for (Worker w : workers) {
+			all.putAll(w.pages);
+		}
+		return all;
+	}
+
+	/** Stops the workers, dropping tasks not applied yet. */
+	public void close() {
+		if (workers == null) {
+			return;
+		}
+		for (Worker w : workers) {
+			w.queue.clear();
+			w.queue.offer(new Item(null, null, null));
+		}
+	}
+
+	private void put(Worker w, Item item) throws IOException {
+		try {
+			w.queue.put(item);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable e = failure;
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame for a new page.
+ * <p>
+ * The BufferPool reports every page that enters, is requested again, or
+ * leaves the pool; the policy keeps whatever history it needs and picks a
+ * victim on demand. Whether a page may actually be evicted (e.g. it is not
+ * dirty) is decided by the BufferPool, so the policy is handed a filter
+ * instead of making that call itself.
+ *
+ * @see BufferPool
+ * @see ClockPolicy
+ * @see LruKPolicy
+ */
+public interface ReplacementPolicy {
+
+	/** Called when page pid has been read into the buffer pool. */
+	public void pageAdded(PageId pid);
+
+	/** Called when page pid is requested while already resident. */
+	public void pageAccessed(PageId pid);
+
+	/** Called when page pid left the buffer pool (evicted or discarded). */
+	public void pageRemoved(PageId pid);
+
+	/**
+	 * Choose the page to evict next. The chosen page is not removed from the
+	 * policy, the BufferPool calls {@link #pageRemoved} once it is gone.
+	 *
+	 * @param evictable tells which resident pages may be evicted right now
+	 * @return the page to evict, or null if no tracked page is evictable
+	 */
+	public PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * ScanRing is a bulk-read access strategy for large sequential scans, after
+ * the ring buffers Postgres uses for its bulk-read strategy.
+ * <p>
+ * A scan that passes its ring to {@link BufferPool#getPage(TransactionId,
+ * PageId, Permissions, ScanRing)} remembers the pages it had to read in.
+ * Once the ring is full, the next page read by the scan replaces the page
+ * it read ringSize pages ago instead of a page chosen by the replacement
+ * policy, so a scan over a huge table only ever occupies a handful of
+ * frames and leaves the working set of other transactions alone.
+ * <p>
+ * A ring belongs to a single scan and is not thread safe.
+ *
+ * @see BufferPool#newScanRing
+ */
+public class ScanRing {
+
+	/** Largest ring handed out by the BufferPool */
+	public static final int MAX_RING_PAGES = 16;
+
+	private final PageId[] ring;
+	private int next;
+
+	/**
+	 * @param size number of frames the scan may occupy
+	 */
+	public ScanRing(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("ring size must be positive: " + size);
+		}
+		ring = new PageId[size];
+		next = 0;
+	}
+
+	/** @return number of frames of this ring */
+	public int size() {
+		return ring.length;
+	}
+
+	/**
+	 * @return the page that the next page read by this scan should replace,
+	 *         or null while the ring is not full yet
+	 */
+	PageId current() {
+		return ring[next];
+	}
+
+	/**
+	 * Records that pid now occupies the current frame of the ring and moves
+	 * on to the next frame.
+	 */
+	void add(PageId pid) {
+		ring[next] = pid;
+		next = (next + 1) % ring.length;
+	}
+}
@@ -147,6 +147,10 @@ public class SeqScan implements DbIterator {
 
     public void close() {
         // some code goes here
+    	if(it != null){
+    		// unpins the page the scan was on
+    		it.close();
+    	}
     	it = null;
     }
 
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,32 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Unit test for deadlock detection.
+   * A write-write deadlock is broken as soon as it forms by aborting the
+   * younger transaction, without waiting for a lock timeout.
+   */
+  @Test public void testDeadlockVictim() throws Exception {
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+
+    // allow initial write locks to acquire
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write0.acquired() && lg2Write1.acquired());
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    // tid2 closed the cycle and is the younger one; its grabber released
+    // its locks after the abort, so tid1 got through
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(1, bp.getDeadlockCount());
+    assertEquals(1, bp.getDeadlockVictimCount());
+  }
+
   /**
    * JUnit suite target
    */
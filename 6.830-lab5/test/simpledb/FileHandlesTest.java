@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class FileHandlesTest {
+
+  private File dir;
+
+  @Before public void setUp() throws Exception {
+    dir = Files.createTempDirectory("filehandles").toFile();
+    dir.deleteOnExit();
+  }
+
+  private File file(int i) {
+    File f = new File(dir, "t" + i);
+    f.deleteOnExit();
+    return f;
+  }
+
+  /**
+   * Channels stay open between uses and are shared by all users of a file.
+   */
+  @Test public void reusesChannel() throws Exception {
+    FileHandles handles = new FileHandles(4);
+    FileHandles.Handle a = handles.acquire(file(0));
+    a.channel().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10);
+    a.release();
+
+    FileHandles.Handle b = handles.acquire(file(0));
+    FileHandles.Handle c = handles.acquire(new File(dir, "t0"));
+    assertSame(a, b);
+    assertSame(b, c);
+    ByteBuffer buf = ByteBuffer.allocate(3);
+    c.channel().read(buf, 10);
+    assertEquals(2, buf.get(1));
+    b.release();
+    c.release();
+    assertEquals(1, handles.openCount());
+    handles.closeAll();
+    assertEquals(0, handles.openCount());
+  }
+
+  /**
+   * Opening more files than the limit closes the least recently used
+   * idle channel.
+   */
+  @Test public void closesLeastRecentlyUsed() throws Exception {
+    FileHandles handles = new FileHandles(2);
+    FileHandles.Handle h0 = handles.acquire(file(0));
+    h0.release();
+    FileHandles.Handle h1 = handles.acquire(file(1));
+    h1.release();
+    handles.acquire(file(0)).release();
+
+    FileHandles.Handle h2 = handles.acquire(file(2));
+    h2.release();
+    assertEquals(2, handles.openCount());
+    assertTrue(h0.channel().isOpen());
+    assertFalse(h1.channel().isOpen());
+    handles.closeAll();
+  }
+
+  /**
+   * Channels in use are not closed; the limit is exceeded instead.
+   */
+  @Test public void keepsChannelsInUse() throws Exception {
+    FileHandles handles = new FileHandles(1);
+    FileHandles.Handle h0 = handles.acquire(file(0));
+    FileHandles.Handle h1 = handles.acquire(file(1));
+    assertEquals(2, handles.openCount());
+    assertTrue(h0.channel().isOpen());
+    assertFalse(handles.close(file(0)));
+
+    h0.release();
+    assertTrue(handles.close(file(0)));
+    assertFalse(h0.channel().isOpen());
+
+    // opened again on the next use
+    FileHandles.Handle again = handles.acquire(file(0));
+    assertTrue(again.channel().isOpen());
+    again.release();
+    h1.release();
+    handles.closeAll();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FileHandlesTest.class);
+  }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest {
+
+  private File file;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("freespace", ".fsm");
+    file.delete();
+    file.deleteOnExit();
+  }
+
+  /**
+   * Without a saved map only the last page is taken to have room.
+   */
+  @Test public void lastPageWithoutSavedMap() {
+    FreeSpaceMap map = new FreeSpaceMap(file);
+    assertEquals(9, map.findPage(10));
+    map.setFree(9, false, 10);
+    assertEquals(-1, map.findPage(10));
+
+    assertEquals(-1, new FreeSpaceMap(file).findPage(0));
+  }
+
+  /**
+   * The lowest page with room is found first, and pages marked full are
+   * skipped.
+   */
+  @Test public void findsLowestPage() {
+    FreeSpaceMap map = new FreeSpaceMap(file);
+    map.setFree(9, false, 10);
+    map.setFree(6, true, 10);
+    map.setFree(3, true, 10);
+    assertEquals(3, map.findPage(10));
+    map.setFree(3, false, 10);
+    assertEquals(6, map.findPage(10));
+    map.setFree(1, true, 10);
+    assertEquals(1, map.findPage(10));
+
+    // a page past the end of the file
+    map.setFree(1, false, 10);
+    map.setFree(6, false, 10);
+    map.setFree(10, true, 11);
+    assertEquals(10, map.findPage(11));
+  }
+
+  /**
+   * A saved map is read back; pages added since count as full but the
+   * last.
+   */
+  @Test public void saveAndLoad() throws Exception {
+    FreeSpaceMap map = new FreeSpaceMap(file);
+    map.setFree(9, false, 10);
+    map.setFree(4, true, 10);
+    map.save();
+
+    FreeSpaceMap loaded = new FreeSpaceMap(file);
+    assertEquals(4, loaded.findPage(10));
+    loaded.setFree(4, false, 10);
+    assertEquals(-1, loaded.findPage(10));
+
+    FreeSpaceMap grown = new FreeSpaceMap(file);
+    assertEquals(4, grown.findPage(20));
+    grown.setFree(4, false, 20);
+    assertEquals(19, grown.findPage(20));
+
+    // a map of more pages than the file has is not used
+    assertEquals(4, new FreeSpaceMap(file).findPage(5));
+    new FreeSpaceMap(file).findPage(3);
+    FreeSpaceMap shrunk = new FreeSpaceMap(file);
+    assertEquals(2, shrunk.findPage(3));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+  }
+}
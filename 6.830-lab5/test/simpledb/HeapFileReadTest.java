@@ -77,6 +77,32 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() through a mapping of the file
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertEquals(4, big.numPages());
+        byte[][] expected = new byte[4][];
+        for (int i = 0; i < 4; i++) {
+            expected[i] = big.readPage(new HeapPageId(big.getId(), i)).getPageData();
+        }
+
+        // pages 0-2 are mapped, page 3 lies in a chunk past the end of the file
+        big.setMapChunkBytes(3 * BufferPool.getPageSize());
+        big.setMemoryMapped(true);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(expected[i], big.readPage(new HeapPageId(big.getId(), i)).getPageData());
+        }
+        try {
+            big.readPage(new HeapPageId(big.getId(), 4));
+            fail("read past the end of the file");
+        } catch (IllegalArgumentException e) {
+        }
+        big.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -5,6 +5,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -43,6 +45,118 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void addTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 2 + 10; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        // the pages filled are handed to the buffer pool on the way
+        ArrayList<Page> pages = empty.insertTuples(tid, tuples);
+        assertEquals(1, pages.size());
+        assertEquals(3, empty.numPages());
+        assertEquals(2, pages.get(0).getId().pageNumber());
+        assertEquals(504 - 10, ((HeapPage) pages.get(0)).getNumEmptySlots());
+        for (int i = 0; i < 2; ++i) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+            assertEquals(0, page.getNumEmptySlots());
+            assertEquals(tid, page.isDirty());
+        }
+        for (int i = 0; i < tuples.size(); ++i) {
+            RecordId rid = tuples.get(i).getRecordId();
+            assertEquals(i / 504, rid.getPageId().pageNumber());
+            assertEquals(i % 504, rid.tupleno());
+        }
+
+        // the next batch goes on with the last page
+        pages = empty.insertTuples(tid, tuples.subList(0, 1));
+        assertEquals(1, pages.size());
+        assertEquals(2, pages.get(0).getId().pageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() after deletes: the space freed in
+     * earlier pages is used before adding pages.
+     */
+    @Test public void addTupleReusesSpace() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        empty.deleteTuple(tid, first);
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() after a delete and a restart: the
+     * free space map saved at the checkpoint still has the freed page.
+     */
+    @Test public void addTupleReusesSpaceAfterReopen() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 504 * 2; ++i) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(tid, first);
+        bp.flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(2, reopened.numPages());
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, reopened.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, reopened.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple(): new pages are not written to disk
+     * until the buffer pool writes them back.
+     */
+    @Test public void addTupleNewPageNotWritten() throws Exception {
+        for (int i = 0; i < 505; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(BufferPool.getPageSize(), empty.getFile().length());
+
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2 * BufferPool.getPageSize(), empty.getFile().length());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.numPages(): a page written past the end, as
+     * by recovery, counts at once, and the pages before it read as empty.
+     * A HeapFile opened on the file again finds the same pages.
+     */
+    @Test public void numPagesAfterWritePage() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 3);
+        empty.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertEquals(4, empty.numPages());
+        HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 2));
+        assertEquals(504, page.getNumEmptySlots());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(4, reopened.numPages());
+    }
+
     /**
      * JUnit suite target
      */
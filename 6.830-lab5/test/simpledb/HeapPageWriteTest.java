@@ -1,9 +1,12 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +129,56 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator() while the page changes: the
+     * iterator returns the tuples of the page when it was created, and the
+     * page bytes reflect every change.
+     */
+    @Test public void modifyWhileIterating() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> all = page.iterator();
+        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
+        while (all.hasNext())
+            tuples.add(all.next());
+
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(page.iterator().next());
+        Tuple added = Utility.getHeapTuple(new int[] { 830, 830 });
+        page.insertTuple(added);
+        page.deleteTuple(tuples.getLast());
+        for (Tuple expected : tuples) {
+            assertTrue(it.hasNext());
+            assertTrue(TestUtil.compareTuples(expected, it.next()));
+        }
+        assertFalse(it.hasNext());
+
+        // the bytes of the page hold the changes
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(tuples.size() - 1, copy.numSlots - copy.getNumEmptySlots());
+        assertTrue(TestUtil.compareTuples(added, copy.iterator().next()));
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage(): the page as read until
+     * setBeforeImage(), after changes too.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] read = page.getPageData();
+        assertArrayEquals(read, page.getBeforeImage().getPageData());
+
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 830, 830 }));
+        assertArrayEquals(read, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(read, page.getPageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 831, 831 }));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
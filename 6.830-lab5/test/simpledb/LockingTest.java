@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,25 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for LockManager wait queues.
+   * A blocked transaction gets its lock as soon as the holder commits,
+   * well within the lock timeout.
+   */
+  @Test public void waiterWokenOnRelease() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT / 2);
+    assertFalse(t.acquired());
+
+    bp.transactionComplete(tid1);
+    t.join(TIMEOUT);
+    assertTrue(t.acquired());
+    assertNull(t.getError());
+  }
+
   /**
    * JUnit suite target
    */
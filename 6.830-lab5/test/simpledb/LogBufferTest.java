@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest {
+
+  /**
+   * Appends more than the ring holds; the oldest segments are written to
+   * make room and the file ends up with all bytes in order.
+   */
+  @Test public void wrapsAroundRing() throws Exception {
+    File f = File.createTempFile("logbuffer", ".log");
+    f.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    raf.writeLong(-1);
+
+    LogBuffer buf = new LogBuffer(2);
+    buf.setFile(raf.getChannel(), raf.length());
+    byte[] data = new byte[LogBuffer.SEGMENT_SIZE * 5 + 123];
+    new Random(830).nextBytes(data);
+    for (int off = 0; off < data.length; off += 1000) {
+      buf.write(data, off, Math.min(1000, data.length - off));
+    }
+
+    assertEquals(data.length, buf.appendedLsn());
+    assertEquals(8 + data.length, buf.filePointer());
+    // two segments can not hold it all, some of it is in the file already
+    assertTrue(buf.writtenLsn() > 0);
+
+    assertEquals(data.length, buf.drain());
+    assertEquals(data.length, buf.writtenLsn());
+    assertEquals(8 + data.length, raf.length());
+
+    byte[] read = new byte[data.length];
+    raf.seek(8);
+    raf.readFully(read);
+    assertArrayEquals(data, read);
+    raf.close();
+  }
+
+  /**
+   * LSNs keep counting when the buffer moves to another file.
+   */
+  @Test public void lsnSurvivesNewFile() throws Exception {
+    File f = File.createTempFile("logbuffer", ".log");
+    f.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+    LogBuffer buf = new LogBuffer(LogBuffer.DEFAULT_SEGMENTS);
+    buf.setFile(raf.getChannel(), 0);
+    buf.write(new byte[100], 0, 100);
+    buf.drain();
+
+    raf.setLength(0);
+    buf.setFile(raf.getChannel(), 0);
+    buf.write(7);
+    assertEquals(101, buf.appendedLsn());
+    assertEquals(1, buf.filePointer());
+    buf.drain();
+    byte[] read = new byte[1];
+    raf.seek(0);
+    raf.readFully(read);
+    assertArrayEquals(new byte[] { 7 }, read);
+    raf.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest {
+
+  private static final int SEGMENT = 1024;
+
+  private File base;
+
+  @Before public void setUp() throws Exception {
+    File dir = Files.createTempDirectory("logsegments").toFile();
+    dir.deleteOnExit();
+    base = new File(dir, "log");
+  }
+
+  private int files() {
+    int n = 0;
+    for (File f : base.getParentFile().listFiles()) {
+      if (f.getName().startsWith("log.")) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private static byte[] random(int n) {
+    byte[] data = new byte[n];
+    new Random(830).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Writes spanning several segments read back in order, followed by
+   * zeroes up to the end of the last segment.
+   */
+  @Test public void writesAcrossSegments() throws Exception {
+    LogSegments segments = new LogSegments(base, SEGMENT, 0);
+    byte[] data = random(SEGMENT * 3 + 100);
+    assertEquals(data.length, segments.write(ByteBuffer.wrap(data), 0));
+    assertEquals(4, segments.size());
+    assertEquals(SEGMENT * 4, segments.end());
+
+    DataInputStream in = new DataInputStream(segments.reader(0));
+    byte[] read = new byte[data.length];
+    in.readFully(read);
+    assertArrayEquals(data, read);
+    assertEquals(0, in.readInt());
+    in.skipBytes(SEGMENT - 100 - 4);
+    try {
+      in.readByte();
+      fail("read past the last segment");
+    } catch (EOFException e) {
+    }
+    segments.close();
+
+    // segments are found again by their names
+    segments = new LogSegments(base, SEGMENT, 0);
+    LogSegments.Reader reader = segments.reader(SEGMENT * 2 + 10);
+    in = new DataInputStream(reader);
+    in.readFully(read, 0, 10);
+    assertEquals(SEGMENT * 2 + 20, reader.position());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(data[SEGMENT * 2 + 10 + i], read[i]);
+    }
+    segments.close();
+  }
+
+  /**
+   * Released segments are recycled into zeroed segments after the last
+   * one; the number of files does not grow.
+   */
+  @Test public void releaseRecycles() throws Exception {
+    LogSegments segments = new LogSegments(base, SEGMENT, 1);
+    long offset = 0;
+    byte[] data = random(SEGMENT / 2);
+    for (int i = 0; i < 20; i++) {
+      offset += segments.write(ByteBuffer.wrap(data), offset);
+      segments.release(offset - SEGMENT / 2);
+    }
+    segments.close();
+    assertTrue(files() <= 3);
+    assertTrue(segments.start() >= offset - SEGMENT);
+
+    // a recycled segment reads as zeroes
+    segments = new LogSegments(base, SEGMENT, 1);
+    DataInputStream in = new DataInputStream(segments.reader(offset));
+    for (long i = offset; i < segments.end(); i += 8) {
+      assertEquals(0, in.readLong());
+    }
+    segments.close();
+  }
+
+  /**
+   * Truncation zeroes the rest of the segment and drops the later ones.
+   */
+  @Test public void truncateZeroesTail() throws Exception {
+    LogSegments segments = new LogSegments(base, SEGMENT, 0);
+    byte[] data = random(SEGMENT + 100);
+    segments.write(ByteBuffer.wrap(data), 0);
+    segments.truncate(500);
+    assertEquals(1, segments.size());
+    assertEquals(1, files());
+
+    DataInputStream in = new DataInputStream(segments.reader(0));
+    byte[] read = new byte[SEGMENT];
+    in.readFully(read);
+    for (int i = 0; i < SEGMENT; i++) {
+      assertEquals(i < 500 ? data[i] : 0, read[i]);
+    }
+    segments.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogSegmentsTest.class);
+  }
+}
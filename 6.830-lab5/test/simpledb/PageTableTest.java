@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageTableTest {
+
+  /** Minimal page, the page table only looks at the id. */
+  private static class StubPage implements Page {
+    private final PageId pid;
+
+    StubPage(PageId pid) {
+      this.pid = pid;
+    }
+
+    public PageId getId() { return pid; }
+    public TransactionId isDirty() { return null; }
+    public void markDirty(boolean dirty, TransactionId tid) { }
+    public byte[] getPageData() { return new byte[0]; }
+    public Page getBeforeImage() { return this; }
+    public void setBeforeImage() { }
+    public long getLSN() { return 0; }
+    public void setLSN(long lsn) { }
+  }
+
+  private static BufferFrame frame(int tableId, int pgNo) {
+    return new BufferFrame(new StubPage(new HeapPageId(tableId, pgNo)));
+  }
+
+  /**
+   * Pages whose HeapPageId hash codes collide ("1" + "23" and "12" + "3")
+   * must get frames of their own.
+   */
+  @Test public void collidingHashCodes() {
+    PageId a = new HeapPageId(1, 23);
+    PageId b = new HeapPageId(12, 3);
+    assertEquals(a.hashCode(), b.hashCode());
+
+    PageTable pt = new PageTable(BufferPool.DEFAULT_PAGES);
+    BufferFrame fa = frame(1, 23);
+    BufferFrame fb = frame(12, 3);
+    assertNull(pt.putIfAbsent(fa));
+    assertNull(pt.putIfAbsent(fb));
+    assertEquals(2, pt.size());
+    assertSame(fa, pt.get(a));
+    assertSame(fb, pt.get(b));
+    assertNotSame(pt.get(a), pt.get(b));
+  }
+
+  /**
+   * putIfAbsent keeps the frame that is already there.
+   */
+  @Test public void putIfAbsent() {
+    PageTable pt = new PageTable(BufferPool.DEFAULT_PAGES);
+    BufferFrame first = frame(1, 0);
+    assertNull(pt.putIfAbsent(first));
+    assertSame(first, pt.putIfAbsent(frame(1, 0)));
+    assertSame(first, pt.get(new HeapPageId(1, 0)));
+  }
+
+  /**
+   * Random adds and removes, checked against a HashMap. The table starts
+   * small so it has to grow, and removals have to keep probe sequences
+   * intact.
+   */
+  @Test public void matchesHashMap() {
+    PageTable pt = new PageTable(4);
+    Map<Long,BufferFrame> expected = new HashMap<Long,BufferFrame>();
+    Random rand = new Random(830);
+
+    for (int i = 0; i < 100000; i++) {
+      PageId pid = new HeapPageId(rand.nextInt(5), rand.nextInt(60));
+      long key = PageTable.key(pid);
+      if (rand.nextBoolean()) {
+        BufferFrame f = new BufferFrame(new StubPage(pid));
+        BufferFrame old = pt.putIfAbsent(f);
+        assertSame(expected.get(key), old);
+        if (old == null) {
+          expected.put(key, f);
+        }
+      } else {
+        assertSame(expected.remove(key), pt.remove(pid));
+      }
+      assertEquals(expected.size(), pt.size());
+      assertSame(expected.get(key), pt.get(pid));
+    }
+    assertEquals(expected.size(), pt.frames().size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageTableTest.class);
+  }
+
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p1, p2, p3;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // create a new empty HeapFile and populate it with three pages.
+    // we should be able to add 504 tuples on an empty page.
+    BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    this.p2 = new HeapPageId(empty.getId(), 2);
+    this.p3 = new HeapPageId(empty.getId(), 3);
+
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * CLOCK gives a recently used page a second chance.
+   */
+  @Test public void clockSecondChance() {
+    ReplacementPolicy policy = new ClockPolicy(3);
+    policy.pageAdded(p0);
+    policy.pageAdded(p1);
+    policy.pageAdded(p2);
+
+    // all reference bits are set, the first sweep clears them
+    assertEquals(p0, policy.chooseVictim(pid -> true));
+    policy.pageRemoved(p0);
+    policy.pageAdded(p3);
+
+    // p1 was used again and survives, p2 was not
+    policy.pageAccessed(p1);
+    assertEquals(p2, policy.chooseVictim(pid -> true));
+  }
+
+  /**
+   * Pages the buffer pool refuses to evict are never chosen.
+   */
+  @Test public void victimRespectsFilter() {
+    ReplacementPolicy[] policies = { new ClockPolicy(2), new LruKPolicy(2) };
+    for (ReplacementPolicy policy : policies) {
+      policy.pageAdded(p0);
+      policy.pageAdded(p1);
+      assertEquals(p1, policy.chooseVictim(pid -> pid.equals(p1)));
+      assertNull(policy.chooseVictim(pid -> false));
+    }
+  }
+
+  /**
+   * LRU-2 evicts pages referenced once (scan pages) before pages referenced
+   * repeatedly, even when the scan pages were used more recently.
+   */
+  @Test public void lru2PrefersScanPages() {
+    ReplacementPolicy policy = new LruKPolicy(3);
+    policy.pageAdded(p0);
+    policy.pageAccessed(p0);
+    policy.pageAdded(p1);
+    policy.pageAdded(p2);
+
+    assertEquals(p1, policy.chooseVictim(pid -> true));
+    policy.pageRemoved(p1);
+    assertEquals(p2, policy.chooseVictim(pid -> true));
+    policy.pageRemoved(p2);
+
+    // a page that comes back keeps its history
+    policy.pageRemoved(p0);
+    policy.pageAdded(p0);
+    policy.pageAdded(p3);
+    assertEquals(p3, policy.chooseVictim(pid -> true));
+  }
+
+  /**
+   * BufferPool counts hits, misses and evictions.
+   */
+  @Test public void bufferPoolStats() throws Exception {
+    BufferPool bp = new BufferPool(2, new LruKPolicy(2));
+    TransactionId tid = new TransactionId();
+
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p0);
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p0);
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p1);
+    // p1 was used only once, so it makes room for p2
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p2);
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p0);
+
+    assertEquals(2, bp.getHitCount());
+    assertEquals(3, bp.getMissCount());
+    assertEquals(1, bp.getEvictionCount());
+    assertEquals(0.4, bp.getHitRate(), 0.0001);
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * A pinned page is never evicted, even when the policy would pick it,
+   * and a pool full of pinned pages refuses to read another page.
+   */
+  @Test public void pinnedPageNotEvicted() throws Exception {
+    BufferPool bp = new BufferPool(2, new LruKPolicy(2));
+    TransactionId tid = new TransactionId();
+
+    // p0 is the LRU-2 victim, but stays pinned
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    bp.unpinPage(tid, p1);
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    assertEquals(1, bp.getPinCount(p0));
+    assertEquals(1, bp.getPinCount(p2));
+    assertEquals(0, bp.getPinCount(p1));
+    assertEquals(1, bp.getEvictionCount());
+
+    // the lock on the evicted page is still held
+    assertTrue(bp.holdsLock(tid, p1));
+
+    try {
+      bp.getPage(tid, p1, Permissions.READ_ONLY);
+      fail("evicted a pinned page");
+    } catch (DbException expected) {
+    }
+
+    // completing the transaction releases its pins
+    bp.transactionComplete(tid);
+    assertEquals(0, bp.getPinCount(p0));
+    TransactionId tid2 = new TransactionId();
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+  }
+}
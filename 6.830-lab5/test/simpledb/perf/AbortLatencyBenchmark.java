@@ -0,0 +1,91 @@
+package simpledb.perf;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.*;
+
+/**
+ * Measures the latency of aborting a transaction while other threads keep
+ * committing batches of inserts. The aborting transaction inserts a tuple,
+ * writes its page (so that there is an update to roll back), stays open
+ * for a while so that the writers append to the log behind it, and aborts.
+ * <p>
+ * Rolling back only has to undo the transaction's own update, so the
+ * latency should not depend on how much the writers logged meanwhile.
+ * <p>
+ * Usage: AbortLatencyBenchmark [maxWriters] [aborts] [openMillis]
+ */
+public class AbortLatencyBenchmark {
+
+    private static final int TUPLES_PER_COMMIT = 100;
+
+    public static void main(String[] args) throws Exception {
+        int maxWriters = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int aborts = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        long openMillis = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        Database.resetBufferPool(maxWriters * 4 + BufferPool.DEFAULT_PAGES);
+        HeapFile[] tables = new HeapFile[maxWriters];
+        for (int i = 0; i < maxWriters; i++) {
+            tables[i] = PerfUtil.createTable(1);
+        }
+        HeapFile victim = PerfUtil.createTable(1);
+
+        System.out.printf("%-8s %12s %12s %12s%n", "writers", "log KB/abort", "p50 us", "p99 us");
+        for (int writers = 1; writers <= maxWriters; writers *= 2) {
+            run(tables, victim, writers, aborts, openMillis);
+        }
+    }
+
+    private static void run(final HeapFile[] tables, HeapFile victim, int writers, int aborts,
+            long openMillis) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final HeapFile table = tables[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    int n = 0;
+                    try {
+                        while (!done.get()) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            for (int j = 0; j < TUPLES_PER_COMMIT; j++) {
+                                Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                        Utility.getHeapTuple(new int[] { n++, 0 }));
+                            }
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        PerfUtil.Latencies latencies = new PerfUtil.Latencies();
+        long logged = 0;
+        for (int i = 0; i < aborts; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), victim.getId(),
+                    Utility.getHeapTuple(new int[] { i, 0 }));
+            Database.getBufferPool().flushPages(t.getId());
+            long before = Database.getLogFile().getFlushedLsn();
+            Thread.sleep(openMillis);
+            logged += Database.getLogFile().getFlushedLsn() - before;
+
+            long t0 = System.nanoTime();
+            t.abort();
+            latencies.add(System.nanoTime() - t0);
+        }
+
+        done.set(true);
+        for (Thread w : threads) {
+            w.join();
+        }
+        System.out.printf("%-8d %12d %12.0f %12.0f%n", writers, logged / 1024 / aborts,
+                latencies.percentile(50), latencies.percentile(99));
+    }
+}
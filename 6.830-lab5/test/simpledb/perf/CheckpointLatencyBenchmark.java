@@ -0,0 +1,95 @@
+package simpledb.perf;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.*;
+
+/**
+ * Measures transaction latency while checkpoints are taken. Writer threads
+ * commit small insert transactions into tables of their own; a
+ * checkpoint is taken every interval. Latencies of transactions that
+ * overlapped a checkpoint are reported separately from all others.
+ * <p>
+ * Usage: CheckpointLatencyBenchmark [writers] [seconds] [intervalMillis]
+ */
+public class CheckpointLatencyBenchmark {
+
+    private static final int TUPLES_PER_COMMIT = 10;
+
+    private static volatile long checkpointStart = Long.MAX_VALUE;
+    private static volatile long checkpointEnd = 0;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long intervalMillis = args.length > 2 ? Long.parseLong(args[2]) : 500;
+
+        Database.resetBufferPool(writers * 8 + BufferPool.DEFAULT_PAGES);
+        final HeapFile[] tables = new HeapFile[writers];
+        for (int i = 0; i < writers; i++) {
+            tables[i] = PerfUtil.createTable(1);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final PerfUtil.Latencies[] during = new PerfUtil.Latencies[writers];
+        final PerfUtil.Latencies[] outside = new PerfUtil.Latencies[writers];
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int w = i;
+            during[w] = new PerfUtil.Latencies();
+            outside[w] = new PerfUtil.Latencies();
+            threads[w] = new Thread() {
+                public void run() {
+                    int n = 0;
+                    try {
+                        while (!done.get()) {
+                            long t0 = System.nanoTime();
+                            Transaction t = new Transaction();
+                            t.start();
+                            for (int j = 0; j < TUPLES_PER_COMMIT; j++) {
+                                Database.getBufferPool().insertTuple(t.getId(), tables[w].getId(),
+                                        Utility.getHeapTuple(new int[] { n++, 0 }));
+                            }
+                            t.commit();
+                            long t1 = System.nanoTime();
+                            // overlapped the current or the last checkpoint
+                            boolean overlapped = t1 >= checkpointStart || t0 <= checkpointEnd;
+                            (overlapped ? during[w] : outside[w]).add(t1 - t0);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[w].start();
+        }
+
+        int checkpoints = 0;
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        PerfUtil.Latencies checkpointTimes = new PerfUtil.Latencies();
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(intervalMillis);
+            checkpointStart = System.nanoTime();
+            Database.getLogFile().logCheckpoint();
+            checkpointEnd = System.nanoTime();
+            checkpointTimes.add(checkpointEnd - checkpointStart);
+            checkpointStart = Long.MAX_VALUE;
+            checkpoints++;
+        }
+        done.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        PerfUtil.Latencies all = new PerfUtil.Latencies();
+        PerfUtil.Latencies overlapped = new PerfUtil.Latencies();
+        for (int i = 0; i < writers; i++) {
+            all.addAll(outside[i]);
+            all.addAll(during[i]);
+            overlapped.addAll(during[i]);
+        }
+        System.out.printf("%d checkpoints, checkpoint %s%n", checkpoints, checkpointTimes);
+        System.out.printf("%-12s %s%n", "all", all);
+        System.out.printf("%-12s %s%n", "overlapping", overlapped);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.perf;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures committed transactions per second against the number of client
+ * threads, with group commit off, on, and on with a batch window. Each
+ * transaction inserts one tuple into a table of its own thread, so the
+ * threads only share the log, and commits with a log force.
+ * <p>
+ * The forces column is the number of FileChannel.force() calls on the log
+ * per commit; without group commit every commit pays two, one for its
+ * pages and one for its commit record.
+ * <p>
+ * Usage: GroupCommitBenchmark [maxThreads] [seconds] [windowMicros]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long windowMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        Database.resetBufferPool(maxThreads * 4 + BufferPool.DEFAULT_PAGES);
+        HeapFile[] tables = new HeapFile[maxThreads];
+        for (int i = 0; i < maxThreads; i++) {
+            tables[i] = PerfUtil.createTable(1);
+        }
+
+        System.out.printf("%-12s %8s %14s %10s%n", "mode", "threads", "commits/s", "forces");
+        for (String mode : new String[] { "off", "on", "window" }) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                LogFile log = Database.getLogFile();
+                log.setGroupCommit(!mode.equals("off"), mode.equals("window") ? windowMicros : 0, threads);
+                run(mode, tables, threads, seconds);
+            }
+        }
+        Database.getLogFile().setGroupCommit(true, 0, Integer.MAX_VALUE);
+    }
+
+    private static void run(String mode, final HeapFile[] tables, int threads, final int seconds)
+            throws Exception {
+        final AtomicLong commits = new AtomicLong();
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final HeapFile table = tables[i];
+            workers[i] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    try {
+                        start.await();
+                        long deadline = System.currentTimeMillis() + seconds * 1000L;
+                        while (System.currentTimeMillis() < deadline) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                    Utility.getHeapTuple(new int[] { (int) n, 0 }));
+                            t.commit();
+                            n++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    commits.addAndGet(n);
+                }
+            };
+            workers[i].start();
+        }
+
+        long forces0 = Database.getLogFile().getForceCount();
+        start.await();
+        long t0 = System.nanoTime();
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsed = System.nanoTime() - t0;
+        long forces = Database.getLogFile().getForceCount() - forces0;
+        System.out.printf("%-12s %8d %14.0f %10.2f%n", mode, threads,
+                commits.get() * 1e9 / elapsed, (double) forces / Math.max(1, commits.get()));
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb.perf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Runs short transactions that lock a few random pages of a small table
+ * from several threads, like the LockGrabber threads of DeadlockTest and
+ * TransactionTest but in a loop, and reports committed transactions per
+ * second, aborts and the time spent waiting for locks.
+ * <p>
+ * Each transaction locks distinct pages in ascending page order, so there
+ * are no deadlocks and no transaction should be aborted.
+ * <p>
+ * Usage: LockContentionBenchmark [threads] [pages] [locksPerTransaction]
+ * [writePercent] [seconds]
+ */
+public class LockContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int pages = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int locks = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        final int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        if (locks > pages) {
+            throw new IllegalArgumentException("can not lock " + locks + " distinct pages out of " + pages);
+        }
+
+        final HeapFile table = PerfUtil.createTable(pages);
+        Database.resetBufferPool(Math.max(pages, BufferPool.DEFAULT_PAGES));
+        System.out.printf("%d threads, %d pages, %d locks per transaction, %d%% writes%n",
+                threads, pages, locks, writePercent);
+
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final PerfUtil.Latencies[] waits = new PerfUtil.Latencies[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final PerfUtil.Latencies lat = waits[i] = new PerfUtil.Latencies();
+            final Random rand = new Random(i);
+            workers[i] = new Thread() {
+                public void run() {
+                    BufferPool bp = Database.getBufferPool();
+                    int[] pageNos = new int[locks];
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            randomPages(rand, pages, pageNos);
+
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int j = 0; j < locks; j++) {
+                                    Permissions perm = rand.nextInt(100) < writePercent
+                                            ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                    long start = System.nanoTime();
+                                    bp.getPage(tid, new HeapPageId(table.getId(), pageNos[j]), perm);
+                                    lat.add(System.nanoTime() - start);
+                                }
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        PerfUtil.Latencies all = new PerfUtil.Latencies();
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            all.addAll(waits[i]);
+        }
+
+        System.out.printf("commits/s %.0f, aborts %d (%.2f%%)%n",
+                commits.get() / (double) seconds, aborts.get(),
+                100.0 * aborts.get() / Math.max(1, commits.get() + aborts.get()));
+        System.out.printf("getPage latency: %s%n", all);
+    }
+
+    /** Fills pageNos with distinct random page numbers in ascending order. */
+    private static void randomPages(Random rand, int pages, int[] pageNos) {
+        for (int j = 0; j < pageNos.length; j++) {
+            int p;
+            boolean dup;
+            do {
+                p = rand.nextInt(pages);
+                dup = false;
+                for (int k = 0; k < j; k++) {
+                    dup |= pageNos[k] == p;
+                }
+            } while (dup);
+            pageNos[j] = p;
+        }
+        Arrays.sort(pageNos);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb.perf;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Microbenchmark of LockManager lock/unlock throughput against thread
+ * count, in the style of a JMH throughput benchmark: every configuration
+ * runs a few warmup iterations that are thrown away, then measurement
+ * iterations whose mean and min/max are reported.
+ * <p>
+ * Each thread runs its own transactions that read-lock and write-lock
+ * pages no other thread touches and then release them, so the only
+ * contention is on the lock manager itself. The single-shard run is the
+ * old global monitor layout.
+ * <p>
+ * Usage: LockThroughputBenchmark [maxThreads] [shards] [iterationMillis]
+ */
+public class LockThroughputBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final int PAGES_PER_THREAD = 64;
+    private static final int LOCKS_PER_TRANSACTION = 4;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : LockManager.DEFAULT_SHARDS;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+        System.out.printf("%-8s %8s %16s %16s %16s%n", "shards", "threads", "ops/s", "min", "max");
+        for (int s : new int[] { 1, shards }) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                run(s, threads, millis);
+            }
+        }
+    }
+
+    private static void run(int shards, final int threads, final long millis) throws Exception {
+        final LockManager lm = new LockManager(shards);
+        double sum = 0, min = Double.MAX_VALUE, max = 0;
+        for (int it = 0; it < WARMUP_ITERATIONS + MEASURE_ITERATIONS; it++) {
+            double opsPerSec = iteration(lm, threads, millis);
+            if (it >= WARMUP_ITERATIONS) {
+                sum += opsPerSec;
+                min = Math.min(min, opsPerSec);
+                max = Math.max(max, opsPerSec);
+            }
+        }
+        System.out.printf("%-8d %8d %16.0f %16.0f %16.0f%n",
+                shards, threads, sum / MEASURE_ITERATIONS, min, max);
+    }
+
+    /** @return lock+unlock operations per second over all threads */
+    private static double iteration(final LockManager lm, int threads, final long millis)
+            throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int tableId = i + 1;
+            workers[i] = new Thread() {
+                public void run() {
+                    PageId[] pids = new PageId[PAGES_PER_THREAD];
+                    for (int p = 0; p < pids.length; p++) {
+                        pids[p] = new HeapPageId(tableId, p);
+                    }
+                    long n = 0;
+                    int next = 0;
+                    try {
+                        start.await();
+                        long deadline = System.nanoTime() + millis * 1000000L;
+                        while (System.nanoTime() < deadline) {
+                            TransactionId tid = new TransactionId();
+                            for (int j = 0; j < LOCKS_PER_TRANSACTION; j++) {
+                                lm.lock(tid, pids[next], (j & 1) == 0
+                                        ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+                                next = (next + 1) % pids.length;
+                            }
+                            lm.unlock(tid);
+                            n += LOCKS_PER_TRANSACTION;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    ops.addAndGet(n);
+                }
+            };
+            workers[i].start();
+        }
+
+        start.await();
+        long t0 = System.nanoTime();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return ops.get() * 1e9 / (System.nanoTime() - t0);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.perf;
+
+import java.io.*;
+import java.util.Arrays;
+
+import simpledb.*;
+
+/**
+ * Helpers shared by the benchmarks in this package. Benchmarks are plain
+ * programs with a main method, run them with
+ * <pre>ant runbench -Dbench=ScanResistanceBenchmark</pre>
+ */
+public class PerfUtil {
+
+    /**
+     * Creates a table with the given number of completely filled pages of
+     * two-column integer tuples and adds it to the catalog. All pages hold
+     * the same tuples, which is enough for benchmarks that only care about
+     * page traffic.
+     */
+    public static HeapFile createTable(int pages) throws IOException, DbException {
+        File f = File.createTempFile("perf", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        int i = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(Utility.getHeapTuple(new int[] { i, i }));
+            i++;
+        }
+        byte[] data = page.getPageData();
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        for (int p = 0; p < pages; p++) {
+            out.write(data);
+        }
+        out.close();
+        // opened again, a HeapFile counts the pages of its file when created
+        return Utility.openHeapFile(2, f);
+    }
+
+    /** Reads every tuple of the table in its own transaction. */
+    public static int scan(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /** Collects latency samples in nanoseconds. */
+    public static class Latencies {
+        private long[] samples = new long[1024];
+        private int n = 0;
+
+        public void add(long nanos) {
+            if (n == samples.length) {
+                samples = Arrays.copyOf(samples, n * 2);
+            }
+            samples[n++] = nanos;
+        }
+
+        /** Adds all samples of other. */
+        public void addAll(Latencies other) {
+            for (int i = 0; i < other.n; i++) {
+                add(other.samples[i]);
+            }
+        }
+
+        public int count() {
+            return n;
+        }
+
+        /** @return the p-th percentile (0-100) in microseconds */
+        public double percentile(double p) {
+            if (n == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            int idx = (int) Math.min(n - 1, Math.ceil(p / 100.0 * n) - 1);
+            return sorted[Math.max(0, idx)] / 1000.0;
+        }
+
+        /** @return mean latency in microseconds */
+        public double mean() {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += samples[i];
+            }
+            return n == 0 ? 0 : sum / 1000.0 / n;
+        }
+
+        public String toString() {
+            return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                    n, mean(), percentile(50), percentile(99), percentile(100));
+        }
+    }
+}
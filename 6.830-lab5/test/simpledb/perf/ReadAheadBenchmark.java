@@ -0,0 +1,56 @@
+package simpledb.perf;
+
+import java.io.FileWriter;
+import java.io.IOException;
+
+import simpledb.*;
+
+/**
+ * Measures full scans of a table with and without read-ahead, in MB/s.
+ * <p>
+ * With "cold", the OS page cache is dropped before every scan so that the
+ * scan reads from the disk; this needs root on Linux
+ * (/proc/sys/vm/drop_caches). Otherwise the table is read from the page
+ * cache after the first scan, and read-ahead can only overlap page
+ * decoding with the scan on another core.
+ * <p>
+ * Usage: ReadAheadBenchmark [pages] [passes] [bufferPages] [cold]
+ */
+public class ReadAheadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int bufferPages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        boolean cold = args.length > 3 && args[3].equals("cold");
+
+        HeapFile hf = PerfUtil.createTable(pages);
+        double mb = (double) pages * BufferPool.getPageSize() / 1048576;
+        System.out.printf("table %d pages (%.0f MB), %d passes, buffer pool %d pages, %s cache%n",
+                pages, mb, passes, bufferPages, cold ? "cold" : "warm");
+        System.out.printf("%-12s %10s%n", "read-ahead", "MB/s");
+
+        for (boolean readAhead : new boolean[] { false, true, false, true }) {
+            double seconds = 0;
+            for (int i = 0; i < passes; i++) {
+                BufferPool bp = Database.resetBufferPool(bufferPages);
+                bp.setReadAheadEnabled(readAhead);
+                if (cold) {
+                    dropCaches();
+                }
+                long t0 = System.nanoTime();
+                PerfUtil.scan(hf);
+                seconds += (System.nanoTime() - t0) / 1e9;
+            }
+            System.out.printf("%-12s %10.1f%n", readAhead ? "on" : "off", mb * passes / seconds);
+        }
+        hf.close();
+    }
+
+    private static void dropCaches() throws IOException, InterruptedException {
+        Runtime.getRuntime().exec(new String[] { "sync" }).waitFor();
+        try (FileWriter w = new FileWriter("/proc/sys/vm/drop_caches")) {
+            w.write("1");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package simpledb.perf;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures how long LogFile.recover() takes on a log of full page images.
+ * A few transactions log UPDATE records for the pages of one table until
+ * the log reaches the requested size; all but the last one commit, then
+ * the database is restarted and recovered, which redoes the committed
+ * records and undoes the unfinished one.
+ * <p>
+ * Usage: RecoveryBenchmark [logMB] [pages] [transactions] [redoThreads]
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int transactions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int redoThreads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        Database.reset();
+        HeapFile hf = PerfUtil.createTable(pages);
+        File file = hf.getFile();
+        LogFile log = Database.getLogFile();
+
+        long target = logMB * 1024 * 1024;
+        long perTransaction = target / transactions;
+        long records = 0;
+        for (int t = 0; t < transactions; t++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            long end = Math.min(target, (t + 1) * perTransaction);
+            while (log.getNextRecordLsn() < end) {
+                // batches between length checks, the log is buffered
+                for (int i = 0; i < 256; i++, records++) {
+                    HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), (int) (records % pages)));
+                    log.logWrite(tid, page, page);
+                }
+                log.force();
+            }
+            if (t < transactions - 1) {
+                log.logCommit(tid);
+            }
+        }
+        log.force();
+        long bytes = log.getNextRecordLsn();
+
+        // restart and recover
+        Database.reset();
+        Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(redoThreads);
+        long t0 = System.nanoTime();
+        Database.getLogFile().recover();
+        double seconds = (System.nanoTime() - t0) / 1e9;
+
+        System.out.printf("%-10s %10s %8s %12s %10s%n", "log MB", "records", "threads", "recover s", "MB/s");
+        System.out.printf("%-10.0f %10d %8d %12.2f %10.1f%n", bytes / 1048576.0, records, redoThreads, seconds,
+                bytes / 1048576.0 / seconds);
+        // the log and its segments
+        Database.getLogFile().close();
+        for (File f : new File(".").getAbsoluteFile().getParentFile().listFiles()) {
+            if (f.getName().equals("log") || f.getName().startsWith("log.")) {
+                f.delete();
+            }
+        }
+    }
+}
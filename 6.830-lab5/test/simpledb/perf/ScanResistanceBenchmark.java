@@ -0,0 +1,89 @@
+package simpledb.perf;
+
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures point lookups on a small hot table while a full scan of a big
+ * table runs in another thread, with and without scan rings.
+ * <p>
+ * Without rings the scan pushes the hot pages out of the buffer pool and
+ * lookups turn into disk reads; with rings the scan stays inside its own
+ * frames and lookup latency should stay where it was without any scan.
+ * <p>
+ * Usage: ScanResistanceBenchmark [bufferPages] [hotPages] [scanPages] [seconds]
+ */
+public class ScanResistanceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bufferPages = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int scanPages = args.length > 2 ? Integer.parseInt(args[2]) : 4000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        HeapFile hot = PerfUtil.createTable(hotPages);
+        HeapFile big = PerfUtil.createTable(scanPages);
+        System.out.printf("buffer pool %d pages, hot table %d pages, scanned table %d pages%n",
+                bufferPages, hotPages, scanPages);
+
+        run("no scan", hot, null, bufferPages, true, seconds);
+        run("scan with rings", hot, big, bufferPages, true, seconds);
+        run("scan without rings", hot, big, bufferPages, false, seconds);
+    }
+
+    private static void run(String name, final HeapFile hot, final HeapFile big,
+            int bufferPages, boolean rings, int seconds) throws Exception {
+        final BufferPool bp = Database.resetBufferPool(bufferPages);
+        bp.setScanRingsEnabled(rings);
+
+        // warm up the hot set
+        lookups(hot, 1000, null);
+
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final int[] scans = new int[1];
+        Thread scanner = null;
+        if (big != null) {
+            scanner = new Thread() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            PerfUtil.scan(big);
+                            scans[0]++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            scanner.start();
+        }
+
+        PerfUtil.Latencies lat = new PerfUtil.Latencies();
+        while (System.currentTimeMillis() < deadline) {
+            lookups(hot, 100, lat);
+        }
+        if (scanner != null) {
+            scanner.join();
+        }
+
+        System.out.printf("%-20s lookups: %s, full scans %d%n", name, lat, scans[0]);
+    }
+
+    private static final Random rand = new Random(42);
+
+    private static void lookups(HeapFile hot, int n, PerfUtil.Latencies lat) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            PageId pid = new HeapPageId(hot.getId(), rand.nextInt(hot.numPages()));
+            long start = System.nanoTime();
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            page.iterator().next();
+            if (lat != null) {
+                lat.add(System.nanoTime() - start);
+            }
+            bp.transactionComplete(tid);
+        }
+    }
+}
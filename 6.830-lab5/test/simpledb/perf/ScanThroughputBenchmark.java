@@ -0,0 +1,74 @@
+package simpledb.perf;
+
+import java.lang.management.ManagementFactory;
+
+import simpledb.*;
+
+/**
+ * Measures how fast a table is read, in MB/s, with HeapFile reading pages
+ * from its FileChannel and with HeapFile reading them from a mapping of
+ * the file. The table fits in the OS page cache after the first pass, so
+ * this measures the cost of the read path rather than the disk.
+ * <p>
+ * Two loops are timed: HeapFile.readPage over every page, and a SeqScan
+ * through a buffer pool too small to hold the table. For the SeqScan, the
+ * bytes allocated by the scanning thread per row returned are reported too.
+ * With bufferPages at least pages, the scans read pages from the buffer
+ * pool instead.
+ * <p>
+ * Usage: ScanThroughputBenchmark [pages] [passes] [bufferPages]
+ */
+public class ScanThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int bufferPages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        HeapFile hf = PerfUtil.createTable(pages);
+        double mb = (double) pages * BufferPool.getPageSize() / 1048576;
+        System.out.printf("table %d pages (%.0f MB), %d passes, buffer pool %d pages%n",
+                pages, mb, passes, bufferPages);
+        System.out.printf("%-8s %14s %14s %14s%n", "mode", "readPage MB/s", "SeqScan MB/s", "SeqScan B/row");
+
+        for (boolean mapped : new boolean[] { false, true }) {
+            hf.setMemoryMapped(mapped);
+            // warm up the page cache and the JIT
+            readPages(hf, pages);
+            PerfUtil.scan(hf);
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < passes; i++) {
+                readPages(hf, pages);
+            }
+            double read = (System.nanoTime() - t0) / 1e9;
+
+            Database.resetBufferPool(bufferPages);
+            PerfUtil.scan(hf);
+            long rows = 0;
+            long a1 = allocatedBytes();
+            long t1 = System.nanoTime();
+            for (int i = 0; i < passes; i++) {
+                rows += PerfUtil.scan(hf);
+            }
+            double scan = (System.nanoTime() - t1) / 1e9;
+            long allocated = allocatedBytes() - a1;
+
+            System.out.printf("%-8s %14.1f %14.1f %14.1f%n", mapped ? "mmap" : "channel",
+                    mb * passes / read, mb * passes / scan, (double) allocated / rows);
+        }
+        hf.close();
+    }
+
+    // bytes allocated by this thread so far, as counted by HotSpot
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void readPages(HeapFile hf, int pages) {
+        for (int p = 0; p < pages; p++) {
+            hf.readPage(new HeapPageId(hf.getId(), p));
+        }
+    }
+}
@@ -39,6 +39,29 @@ public class EvictionTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A scan holds a single pin, so a buffer pool of two frames, one of them
+     * taken by a dirty page, still has a frame for the scan to go through.
+     */
+    @Test public void testScanBesideDirtyPage() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*4, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(f, t);
+        int rows = 0;
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            rows++;
+        }
+        scan.close();
+        assertEquals(512*4 + 1, rows);
+        t.commit();
+    }
+
     public static void insertRow(HeapFile f, Transaction t) throws DbException,
             TransactionAbortedException {
         // Create a row to insert
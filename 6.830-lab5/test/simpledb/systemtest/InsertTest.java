@@ -68,6 +68,28 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    /**
+     * Pages filled by the insert are logged as they fill up, so they can be
+     * written back before the transaction commits; more pages than the
+     * buffer pool holds can be inserted.
+     */
+    @Test public void testLargerThanBufferPool()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(10);
+        validateInsert(2, 504 * 25, 0);
+    }
+
+    /**
+     * As testLargerThanBufferPool, going on with the last page of a table
+     * that has some already, through a buffer pool smaller than the pages
+     * of one batch of Insert.
+     */
+    @Test public void testLargerThanBufferPoolNotEmpty()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(5);
+        validateInsert(2, 504 * 25, 1000);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -427,6 +427,330 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // is the tuple on the first page of the heap file on disk?
+    boolean onDisk(HeapFile hf, int v1) {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v1)
+                return true;
+        }
+        return false;
+    }
+
+    @Test public void TestCleanerCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // with a page cleaner, commit only logs the pages;
+        // a crash before write back must redo the commit
+        doInsert(hf1, 1, 2);
+        assertFalse(onDisk(hf1, 2));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestCleanerWriteBack()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // the cleaner writes back pages of committed transactions,
+        // but not pages an open transaction is changing
+        doInsert(hf1, 1, 2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3, 0);
+
+        assertEquals(1, bp.writeBackPages(PageCleaner.DEFAULT_BATCH));
+        assertEquals(1, bp.getWriteBackCount());
+        assertEquals(0, bp.writeBackPages(PageCleaner.DEFAULT_BATCH));
+        assertTrue(onDisk(hf1, 2));
+        assertFalse(onDisk(hf2, 3));
+        t1.commit();
+        bp.stopPageCleaner();
+    }
+
+    @Test public void TestCleanerAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // with a page cleaner, an abort must not lose committed updates
+        // of the same page that are not on disk yet
+        doInsert(hf1, 1, 2);
+        assertFalse(onDisk(hf1, 2));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestCleanerAbortLogged()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // as above, with the aborted update in the log, so that rollback
+        // undoes it on top of the committed ones
+        doInsert(hf1, 1, 2);
+        assertFalse(onDisk(hf1, 2));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushPages(t1.getId()); // the cleaner is on, only logs
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestDeltaCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+
+        // *** Test:
+        // once a page has a full image in the log, later updates
+        // only log the changed slots; redo and undo must apply them
+        doInsert(hf1, 1, 2);
+        long length = log.getNextRecordLsn();
+        doInsert(hf1, 3, 4);
+        assertTrue(log.getNextRecordLsn() - length < BufferPool.getPageSize());
+
+        dontInsert(hf1, 5, -1);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 6, 0);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(onDisk(hf1, 6));
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, false);
+        t.commit();
+    }
+
+    @Test public void TestCrashAfterRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // recovery undoes the open transaction with CLRs; crashing
+        // again must neither lose the committed tuples nor bring the
+        // undone ones back
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 4, 0);
+        Database.getBufferPool().flushAllPages();
+
+        dontInsert(hf2, 5, -1);
+        doInsert(hf2, 6, -1);
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 5, false);
+        look(hf2, t, 6, true);
+        t.commit();
+    }
+
+    @Test public void TestCommitDuringOpenCheckpointTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // truncation keeps the BEGIN of a transaction that committed
+        // while an older one is open; it must not come back as live
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        doInsert(hf2, 2, -1);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCheckpoint();
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestCleanerCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // a fuzzy checkpoint does not write back committed pages; its
+        // dirty page table must keep their records through truncation
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 2, 0);
+        t2.commit();
+        Database.getLogFile().logCheckpoint();
+        assertFalse(onDisk(hf1, 1));
+        assertFalse(onDisk(hf2, 2));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestSegmentsRecycledCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        System.setProperty("simpledb.LogSegmentMB", "1");
+        try {
+            setup();
+        } finally {
+            System.clearProperty("simpledb.LogSegmentMB");
+        }
+
+        // *** Test:
+        // checkpoints release the segments before them; the log
+        // spans several segments but does not grow, and recovery
+        // reads the records across segment boundaries
+        for (int i = 2; i < 300; i++) {
+            doInsert(hf1, i, -1);
+            Database.getLogFile().logCheckpoint();
+        }
+        assertTrue(Database.getLogFile().getNextRecordLsn() > 2 << 20);
+        int segments = 0;
+        for (File f : new File("log").getAbsoluteFile().getParentFile().listFiles()) {
+            if (f.getName().startsWith("log.")) {
+                segments++;
+            }
+        }
+        assertTrue(segments <= 2 + LogSegments.DEFAULT_SPARES);
+
+        // an open transaction keeps its segments for undo
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 1, 0);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 300; i < 450; i++) {
+            doInsert(hf1, i, -1);
+            Database.getLogFile().logCheckpoint();
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 2, true);
+        look(hf1, t, 299, true);
+        look(hf1, t, 449, true);
+        look(hf2, t, 1, false);
+        t.commit();
+    }
+
+    @Test public void TestParallelRedoCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().startPageCleaner(60000, PageCleaner.DEFAULT_BATCH);
+
+        // *** Test:
+        // redo spread over workers by page must apply the images and
+        // deltas of each page in log order, and leave undo the same
+        // pages to roll back
+        for (int i = 1; i < 20; i++) {
+            doInsert(i % 2 == 0 ? hf1 : hf2, i, -1);
+        }
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 20, 0);
+        insertRow(hf1, t1, 21, 0);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf2, 22, -1);
+
+        System.setProperty("simpledb.RedoThreads", "4");
+        try {
+            crash();
+        } finally {
+            System.clearProperty("simpledb.RedoThreads");
+        }
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 1; i < 20; i++) {
+            look(i % 2 == 0 ? hf1 : hf2, t, i, true);
+        }
+        look(hf1, t, 20, false);
+        look(hf1, t, 21, false);
+        look(hf2, t, 22, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
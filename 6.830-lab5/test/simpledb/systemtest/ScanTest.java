@@ -68,25 +68,57 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
-    /** Verifies that the buffer pool is actually caching data.
-     * @throws TransactionAbortedException
-     * @throws DbException */
-    @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /** Counts the number of readPage operations. */
-        class InstrumentedHeapFile extends HeapFile {
-            public InstrumentedHeapFile(File f, TupleDesc td) {
-                super(f, td);
+    /** A scan goes on past pages without tuples in the middle of the file,
+     * such as pages emptied by deletes. */
+    @Test public void testEmptyMiddlePages() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*4, 1000, null, tuples);
+
+        // delete every tuple of pages 1 and 2
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int page = t.getRecordId().getPageId().pageNumber();
+            if (page == 1 || page == 2) {
+                deleted.add(t);
             }
+        }
+        it.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+            assertTrue(tuples.remove(SystemTestUtil.tupleToList(t)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
 
-            @Override
-            public Page readPage(PageId pid) throws NoSuchElementException {
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(992*2, tuples.size());
+    }
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            // also called by the read-ahead threads
+            synchronized (this) {
                 readCount += 1;
-                return super.readPage(pid);
             }
-
-            public int readCount = 0;
+            return super.readPage(pid);
         }
 
+        public volatile int readCount = 0;
+    }
+
+    /** Verifies that the buffer pool is actually caching data.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
         // Create the table
         final int PAGES = 30;
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
@@ -105,6 +137,86 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** A scan over a table larger than the buffer pool must not push out
+     * pages that were cached before it started. */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        final int BUFFER_PAGES = 16;
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<ArrayList<Integer>>();
+        File hotFile = SystemTestUtil.createRandomHeapFileUnopened(1, 992*4, 1000, null, hotTuples);
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(hotFile, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992*40, 1000, null, bigTuples);
+        Database.resetBufferPool(BUFFER_PAGES);
+
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(4, hot.readCount);
+        hot.readCount = 0;
+
+        SystemTestUtil.matchTuples(big, bigTuples);
+
+        // the big scan only recycled its own frames
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(0, hot.readCount);
+    }
+
+    @Test public void testReadAhead() throws Exception {
+        final int PAGES = 20;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.setReadAheadEnabled(true);
+
+        // another transaction is writing page 3
+        TransactionId writer = new TransactionId();
+        HeapPageId locked = new HeapPageId(table.getId(), 3);
+        bp.getPage(writer, locked, Permissions.READ_WRITE);
+
+        // read the first two pages, the scan is sequential from then on
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int count = 0;
+        while (count < 992 * 2) {
+            assertTrue(it.hasNext());
+            it.next();
+            count++;
+        }
+
+        // pages ahead are read without locks, the scan may never get there
+        for (int p = 2; p < PAGES; p++) {
+            assertFalse(bp.holdsLock(tid, new HeapPageId(table.getId(), p)));
+        }
+        bp.transactionComplete(writer);
+
+        // another transaction changes a page ahead of the scan without
+        // waiting for it, and the scan sees the change
+        TransactionId other = new TransactionId();
+        HeapPage ahead = (HeapPage) bp.getPage(other, new HeapPageId(table.getId(), 5), Permissions.READ_WRITE);
+        Tuple deleted = ahead.iterator().next();
+        ahead.deleteTuple(deleted);
+        ahead.markDirty(true, other);
+        bp.flushAllPages();
+        bp.transactionComplete(other);
+        ArrayList<Integer> deletedValue = new ArrayList<Integer>();
+        deletedValue.add(((IntField) deleted.getField(0)).getValue());
+        assertTrue(tuples.remove(deletedValue));
+
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(tuples.size(), count);
+        // every page was read once, read ahead or not
+        assertEquals(PAGES, table.readCount);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);